@@ -0,0 +1,93 @@
+package com.omniata.android.sdk;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Context of the benchmarks. The files and databases of the SDK are kept in a temporary
+ * directory that is deleted when the JVM exits. There's one per JVM as the SDK shares
+ * its database helper across the process. The processes of a multi-process run share the
+ * directory named by the omniata.bench.root system property instead, which is kept.
+ */
+/* package */ class BenchContext extends Context {
+	private static BenchContext instance;
+
+	private final File 		 root;
+	private volatile boolean connected = true;
+
+	private BenchContext(File root) {
+		this.root = root;
+	}
+
+	public static synchronized BenchContext get() {
+		if (instance == null && System.getProperty("omniata.bench.root") != null) {
+			instance = new BenchContext(new File(System.getProperty("omniata.bench.root")));
+		}
+		if (instance == null) {
+			try {
+				File root = File.createTempFile("omniata-bench", "");
+				if (!root.delete() || !root.mkdirs()) {
+					throw new IOException("Can't create " + root);
+				}
+				instance = new BenchContext(root);
+			} catch (IOException e) {
+				throw new IllegalStateException(e.toString());
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+
+				@Override
+				public void run() {
+					delete(instance.root);
+				}
+			});
+		}
+		return instance;
+	}
+
+	/**
+	 * Sets whether the network is reported as connected, e.g. to build up a backlog
+	 * @param connected
+	 */
+	public void setConnected(boolean connected) {
+		this.connected = connected;
+	}
+
+	@Override
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	@Override
+	public Object getSystemService(String name) {
+		if (CONNECTIVITY_SERVICE.equals(name)) {
+			return new ConnectivityManager(new NetworkInfo(ConnectivityManager.TYPE_WIFI, connected));
+		}
+		return null;
+	}
+
+	@Override
+	public File getFilesDir() {
+		File files = new File(root, "files");
+		files.mkdirs();
+		return files;
+	}
+
+	@Override
+	public File getDatabasePath(String name) {
+		return new File(new File(root, "databases"), name);
+	}
+
+	/* package */ static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
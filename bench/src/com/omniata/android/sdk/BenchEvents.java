@@ -0,0 +1,63 @@
+package com.omniata.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Events shaped like the ones apps track, shared by the benchmarks
+ */
+/* package */ class BenchEvents {
+
+	private BenchEvents() {
+	}
+
+	/**
+	 * @return The parameters of a typical app event
+	 */
+	public static JSONObject parameters() {
+		try {
+			JSONObject parameters = new JSONObject();
+			parameters.put("level", 12);
+			parameters.put("score", 48250);
+			parameters.put("stage", "Dark Forest");
+			parameters.put("character", "mage");
+			parameters.put("duration", 183.5);
+			parameters.put("boosters", 2);
+			parameters.put("first_try", false);
+			parameters.put("currency", "EUR");
+			parameters.put("amount", 0.99);
+			parameters.put("campaign", "spring_sale/2014 ä+ö");
+			return parameters;
+		} catch (JSONException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	/**
+	 * @return A finalized event as stored in the event log
+	 */
+	public static JSONObject event(int i) {
+		try {
+			JSONObject event = OmniataUtils.mergeJSON(Omniata.getAutomaticParameters(), parameters());
+			event.put("om_event_type", "om_level_end");
+			event.put("api_key", "a514370b");
+			event.put("uid", "user-" + (i % 100));
+			event.put("om_creation_time", 1400000000000L + i);
+			event.put("om_event_id", "6f1c2a3e-0b7d-4c55-9d0e-" + String.format("%012d", i));
+			return event;
+		} catch (JSONException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	public static List<JSONObject> events(int n) {
+		List<JSONObject> events = new ArrayList<JSONObject>(n);
+		for (int i = 0; i < n; i++) {
+			events.add(event(i));
+		}
+		return events;
+	}
+}
@@ -0,0 +1,287 @@
+package com.omniata.android.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-process stand-in of the Event API, plugged in as the SDK's transport. It injects
+ * latency, lost requests and responses, 5xx responses and slowly arriving bodies, and
+ * stores each event once by its om_event_id like the server, counting the duplicates of
+ * resent events.
+ *
+ * In a multi-process run every process appends the requests it got accepted to a shared
+ * log, one line per request: the process index, the start and end time of the request and
+ * the ids of its events.
+ */
+/* package */ class BenchServer implements OmniataTransport {
+	// Size of the response body trickled by a slow response
+	private static final int SLOW_BODY_BYTES = 2048;
+
+	private final Profile 			  profile;
+	private final Random 			  random;
+	private final Set<String> 		  ids 		 = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong 		  requests 	 = new AtomicLong();
+	private final AtomicLong 		  lost 		 = new AtomicLong();
+	private final AtomicLong 		  errors 	 = new AtomicLong();
+	private final AtomicLong 		  slowBodies = new AtomicLong();
+	private final AtomicLong 		  received 	 = new AtomicLong();
+	private final AtomicLong 		  duplicates = new AtomicLong();
+	private final FileOutputStream 	  log;
+	private final int 				  process;
+
+	/**
+	 * Faults injected into the requests, each drawn independently per request
+	 */
+	public static class Profile {
+		// Latency of every request and the uniform jitter added to it
+		long 	latencyMS;
+		long 	jitterMS;
+		// Share of requests lost, half of them after the server accepted the events
+		double 	loss;
+		// Share of requests answered 503
+		double 	errors;
+		// Share of responses whose body arrives at bodyBytesPerSecond
+		double 	slowBodies;
+		int 	bodyBytesPerSecond = 4096;
+
+		@Override
+		public String toString() {
+			return String.format("latency=%d+%dms loss=%.2f errors=%.2f slow=%.2f@%dB/s",
+					latencyMS, jitterMS, loss, errors, slowBodies, bodyBytesPerSecond);
+		}
+	}
+
+	public BenchServer(Profile profile, long seed) {
+		this(profile, seed, null, 0);
+	}
+
+	/**
+	 * @param profile
+	 * @param seed Seed of the fault injection
+	 * @param log Shared request log of a multi-process run, null for none
+	 * @param process Index of this process in the log
+	 */
+	public BenchServer(Profile profile, long seed, FileOutputStream log, int process) {
+		this.profile = profile;
+		this.random  = new Random(seed);
+		this.log 	 = log;
+		this.process = process;
+	}
+
+	@Override
+	public void get(String url, int connectTimeout, int readTimeout, OmniataHttpResponseHandler handler) {
+		List<String> events = new ArrayList<String>(1);
+		int query = url.indexOf('?');
+		if (query >= 0) {
+			for (String parameter : url.substring(query + 1).split("&")) {
+				if (parameter.startsWith("om_event_id=")) {
+					events.add(decode(parameter.substring("om_event_id=".length())));
+				}
+			}
+		}
+		request(events, readTimeout, handler);
+	}
+
+	@Override
+	public void post(String url, String contentType, byte[] body, int connectTimeout, int readTimeout, OmniataHttpResponseHandler handler) {
+		List<String> events = new ArrayList<String>();
+		try {
+			JSONObject envelope = new JSONObject(new String(body, "UTF-8"));
+			String common = envelope.getJSONObject("common").optString("om_event_id", null);
+			JSONArray deltas = envelope.getJSONArray("events");
+			for (int i = 0; i < deltas.length(); i++) {
+				events.add(common != null ? common : deltas.getJSONObject(i).optString("om_event_id"));
+			}
+		} catch (JSONException e) {
+			handler.onComplete(400, new ByteArrayInputStream(new byte[0]));
+			return;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+		request(events, readTimeout, handler);
+	}
+
+	private void request(List<String> events, int readTimeout, OmniataHttpResponseHandler handler) {
+		requests.incrementAndGet();
+		long start = System.currentTimeMillis();
+		double loss;
+		double error;
+		double slow;
+		long latency;
+		synchronized(random) {
+			loss 	= random.nextDouble();
+			error 	= random.nextDouble();
+			slow 	= random.nextDouble();
+			latency = profile.latencyMS + (profile.jitterMS > 0 ? (long)(random.nextDouble() * profile.jitterMS) : 0);
+		}
+
+		try {
+			if (loss < profile.loss) {
+				// A lost request or response surfaces as a read timeout
+				lost.incrementAndGet();
+				if (loss < profile.loss / 2) {
+					accept(events, start);
+				}
+				Thread.sleep(readTimeout);
+				handler.onError(new SocketTimeoutException("Read timed out"));
+				return;
+			}
+			Thread.sleep(Math.min(latency, readTimeout));
+			if (latency > readTimeout) {
+				handler.onError(new SocketTimeoutException("Read timed out"));
+				return;
+			}
+			if (error < profile.errors) {
+				errors.incrementAndGet();
+				handler.onComplete(503, new ByteArrayInputStream(new byte[0]));
+				return;
+			}
+
+			accept(events, start);
+			if (slow < profile.slowBodies) {
+				slowBodies.incrementAndGet();
+				InputStream in = new SlowInputStream(SLOW_BODY_BYTES, profile.bodyBytesPerSecond);
+				handler.onComplete(200, in);
+				// Read to the end like the HttpURLConnection transport, giving up at the read timeout
+				drain(in, System.currentTimeMillis() + readTimeout);
+			} else {
+				handler.onComplete(200, new ByteArrayInputStream(new byte[0]));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			handler.onError(new IOException("Interrupted"));
+		}
+	}
+
+	/**
+	 * Stores the events, ignoring the ones already stored
+	 */
+	private void accept(List<String> events, long start) {
+		StringBuilder line = log != null ? new StringBuilder() : null;
+		for (String id : events) {
+			received.incrementAndGet();
+			if (!ids.add(id)) {
+				duplicates.incrementAndGet();
+			}
+			if (line != null) {
+				line.append(line.length() == 0 ? "" : ",").append(id);
+			}
+		}
+		if (line != null) {
+			writeLog(process + " " + start + " " + System.currentTimeMillis() + " " + line + "\n");
+		}
+	}
+
+	private void writeLog(String line) {
+		try {
+			// One write per line, appended atomically by the other processes' writes
+			synchronized(log) {
+				log.write(line.getBytes("UTF-8"));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	private static void drain(InputStream in, long deadline) {
+		try {
+			byte[] buffer = new byte[256];
+			while (System.currentTimeMillis() < deadline && in.read(buffer) >= 0) {
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getLost() {
+		return lost.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getSlowBodies() {
+		return slowBodies.get();
+	}
+
+	/**
+	 * @return The number of events received including the duplicates
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * @return The number of events stored, each resent event once
+	 */
+	public long getUnique() {
+		return ids.size();
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Response body arriving in chunks of 256 bytes at a fixed rate
+	 */
+	private static class SlowInputStream extends InputStream {
+		private final long 	chunkMS;
+		private int 		remaining;
+
+		SlowInputStream(int length, int bytesPerSecond) {
+			this.remaining = length;
+			this.chunkMS   = 256 * 1000L / Math.max(1, bytesPerSecond);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0];
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			try {
+				Thread.sleep(chunkMS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+			int n = Math.min(remaining, Math.min(len, 256));
+			remaining -= n;
+			return n;
+		}
+	}
+}
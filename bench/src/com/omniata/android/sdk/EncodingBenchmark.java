@@ -0,0 +1,52 @@
+package com.omniata.android.sdk;
+
+import java.util.List;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building the requests of the Event API and the JSON helpers on the send path
+ */
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+	private static final int BATCH_SIZE = 50;
+
+	private OmniataQueryEncoder encoder;
+	private JSONObject 			automaticParameters;
+	private JSONObject 			parameters;
+	private JSONObject 			event;
+	private List<JSONObject> 	batch;
+
+	@Setup
+	public void setUp() {
+		encoder 			= new OmniataQueryEncoder();
+		automaticParameters = Omniata.getAutomaticParameters();
+		parameters 			= BenchEvents.parameters();
+		event 				= BenchEvents.event(0);
+		batch 				= BenchEvents.events(BATCH_SIZE);
+	}
+
+	@Benchmark
+	public String queryString() {
+		return encoder.query(event);
+	}
+
+	@Benchmark
+	public String eventURL() {
+		return encoder.url(OmniataUtils.getEventAPI(true, false), event);
+	}
+
+	@Benchmark
+	public JSONObject mergeJSON() {
+		return OmniataUtils.mergeJSON(automaticParameters, parameters);
+	}
+
+	@Benchmark
+	public String batchEnvelope() {
+		return OmniataUtils.batchEnvelope(batch).toString();
+	}
+}
@@ -0,0 +1,418 @@
+package com.omniata.android.sdk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * End-to-end load test of the SDK against {@link BenchServer}: events are tracked through
+ * the public API, stored, and uploaded by the worker through the fault injecting transport.
+ * Options are key=value arguments, see {@link #DEFAULTS}.
+ *
+ * A single process run tracks a backlog while the network is reported as disconnected,
+ * then connects and flushes. It reports the tracking and storing rates, the drain time of
+ * the backlog with the upload rate, the peak heap use, and the events the server got more
+ * than once, e.g. after a lost response. It fails unless every event arrived.
+ *
+ * With processes=N, N JVMs share one app directory with multi-process mode on, each tracking
+ * its own events. They log the requests they upload to a shared file, from which the run
+ * checks that every event arrived and that no two processes uploaded at the same time.
+ * With kill=true the uploading process is killed halfway and another one has to take over.
+ */
+public class LoadHarness {
+	private static final String API_KEY 	= "a514370b";
+	private static final String EVENT_TYPE 	= "om_level_end";
+
+	/**
+	 * Options and their defaults
+	 */
+	private static final String[][] DEFAULTS = {
+		{"events", 		"100000"},	// Events tracked, per process in a multi-process run
+		{"batch", 		"1000"},	// Upload batch size, the worker sends at most a request per second
+		{"storage", 	"sqlite"},	// sqlite or segment
+		{"latency", 	"50"},		// Latency of every request in milliseconds
+		{"jitter", 		"100"},		// Uniform jitter added to the latency in milliseconds
+		{"loss", 		"0.02"},	// Share of requests or responses lost
+		{"errors", 		"0.02"},	// Share of requests answered 503
+		{"slow", 		"0.02"},	// Share of responses with a slow body
+		{"bodyRate", 	"4096"},	// Bytes per second of a slow body
+		{"timeoutMin", 	"500"},		// Bounds of the SDK's timeouts in milliseconds
+		{"timeoutMax", 	"2000"},
+		{"seed", 		"1"},		// Seed of the fault injection
+		{"timeout", 	"1800"},	// Time limit of the run in seconds
+		{"processes", 	"1"},
+		{"kill", 		"false"},	// Kill the uploading process halfway
+		{"log", 		"7"},		// Log priority of the SDK, 7 logs nothing
+	};
+
+	private final Map<String, String> options;
+
+	private LoadHarness(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String[] option : DEFAULTS) {
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		LoadHarness harness = new LoadHarness(options);
+		boolean passed;
+		if (options.containsKey("child")) {
+			harness.runChild();
+			passed = true;
+		} else if (harness.intOption("processes") > 1) {
+			passed = harness.runProcesses();
+		} else {
+			passed = harness.runSingle();
+		}
+		// The SDK's threads are daemons, but the server may still be sleeping on a lost request
+		System.exit(passed ? 0 : 1);
+	}
+
+	private boolean runSingle() throws Exception {
+		int events = intOption("events");
+		BenchContext context = BenchContext.get();
+		BenchServer server = new BenchServer(profile(), longOption("seed"));
+		System.out.println("Load test: " + events + " events, batch " + intOption("batch") + ", "
+				+ options.get("storage") + ", " + profile());
+
+		resetPeakHeap();
+		context.setConnected(false);
+		startSDK(context, server, "user-1");
+
+		JSONObject parameters = BenchEvents.parameters();
+		long trackStart = System.nanoTime();
+		for (int i = 0; i < events; i++) {
+			Omniata.track(EVENT_TYPE, parameters);
+		}
+		long trackTime = System.nanoTime() - trackStart;
+		if (!awaitPersisted(events)) {
+			System.out.println("FAILED: events not stored in time");
+			return false;
+		}
+		long storeTime = System.nanoTime() - trackStart;
+
+		context.setConnected(true);
+		long drainStart = System.nanoTime();
+		Future<Boolean> flush = Omniata.flush(TimeUnit.SECONDS.toMillis(longOption("timeout")));
+		boolean drained = flush.get();
+		long drainTime = System.nanoTime() - drainStart;
+
+		OmniataStats.Snapshot stats = Omniata.getStats();
+		print("track", events, trackTime);
+		print("store", events, storeTime);
+		print("drain", events, drainTime);
+		System.out.printf(Locale.US, "peak heap  %.1f MB (sum of the heap pools' peaks)%n", peakHeap() / 1048576.0);
+		System.out.printf(Locale.US, "requests   %d: %d lost, %d 5xx, %d slow bodies; %d retries%n",
+				server.getRequests(), server.getLost(), server.getErrors(), server.getSlowBodies(),
+				stats.getCounter(OmniataStats.Counter.SEND_RETRIES));
+		System.out.printf(Locale.US, "server     %d events received, %d unique, %d duplicates dropped%n",
+				server.getReceived(), server.getUnique(), server.getDuplicates());
+
+		if (!drained || server.getUnique() != events) {
+			System.out.println("FAILED: " + server.getUnique() + " of " + events + " events arrived"
+					+ (drained ? "" : " before the time limit"));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A process of a multi-process run: tracks its events, then keeps uploading until the
+	 * parent creates the done file
+	 */
+	private void runChild() throws Exception {
+		int index = intOption("child");
+		int events = intOption("events");
+		File root = new File(System.getProperty("omniata.bench.root"));
+		FileOutputStream requestLog = new FileOutputStream(new File(root, "requests.log"), true);
+		BenchServer server = new BenchServer(profile(), longOption("seed") + index, requestLog, index);
+
+		startSDK(BenchContext.get(), server, "user-" + index);
+		Omniata.setMultiProcess(true);
+		JSONObject parameters = BenchEvents.parameters();
+		for (int i = 0; i < events; i++) {
+			Omniata.track(EVENT_TYPE, parameters);
+		}
+		if (!awaitPersisted(events)) {
+			throw new IllegalStateException("Events not stored in time");
+		}
+		new File(root, "ready-" + index).createNewFile();
+
+		File done = new File(root, "done");
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(longOption("timeout"));
+		while (!done.exists() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+	}
+
+	private boolean runProcesses() throws Exception {
+		int processes = intOption("processes");
+		int total = processes * intOption("events");
+		boolean kill = Boolean.parseBoolean(options.get("kill"));
+		if (!"sqlite".equals(options.get("storage"))) {
+			throw new IllegalArgumentException("Multi-process mode needs sqlite storage");
+		}
+		System.out.println("Multi-process test: " + processes + " processes, " + intOption("events")
+				+ " events each, batch " + intOption("batch") + (kill ? ", uploader killed halfway" : "")
+				+ ", " + profile());
+
+		File root = File.createTempFile("omniata-load", "");
+		if (!root.delete() || !root.mkdirs()) {
+			throw new IOException("Can't create " + root);
+		}
+		File requestLog = new File(root, "requests.log");
+
+		long start = System.currentTimeMillis();
+		List<Process> children = new ArrayList<Process>();
+		for (int i = 0; i < processes; i++) {
+			List<String> command = new ArrayList<String>();
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add("-Domniata.bench.root=" + root.getPath());
+			command.add(LoadHarness.class.getName());
+			for (Map.Entry<String, String> option : options.entrySet()) {
+				command.add(option.getKey() + "=" + option.getValue());
+			}
+			command.add("child=" + i);
+			children.add(new ProcessBuilder(command).inheritIO().start());
+		}
+
+		long deadline = start + TimeUnit.SECONDS.toMillis(longOption("timeout"));
+		int killed = -1;
+		long killedAt = 0;
+		List<Request> requests = Collections.emptyList();
+		while (System.currentTimeMillis() < deadline) {
+			requests = readRequests(requestLog);
+			int unique = uniqueEvents(requests);
+			if (unique == total) {
+				break;
+			}
+			if (kill && killed < 0 && unique >= total / 2 && allReady(root, processes)) {
+				killed = requests.get(requests.size() - 1).process;
+				killedAt = System.currentTimeMillis();
+				// Like Android killing the app's process
+				children.get(killed).destroyForcibly();
+				System.out.println("Killed uploading process " + killed + " at " + unique + " events");
+			}
+			Thread.sleep(100);
+		}
+		long time = System.currentTimeMillis() - start;
+		new File(root, "done").createNewFile();
+		for (Process child : children) {
+			child.waitFor();
+		}
+		requests = readRequests(requestLog);
+
+		// Requests of different processes overlapping in time mean two uploaders
+		List<Request> byStart = new ArrayList<Request>(requests);
+		Collections.sort(byStart, new Comparator<Request>() {
+
+			@Override
+			public int compare(Request a, Request b) {
+				return a.start < b.start ? -1 : (a.start > b.start ? 1 : 0);
+			}
+		});
+		int overlaps = 0;
+		long[] uploaded = new long[processes];
+		for (int i = 0; i < byStart.size(); i++) {
+			Request request = byStart.get(i);
+			uploaded[request.process] += request.ids.length;
+			if (i > 0 && byStart.get(i - 1).process != request.process && request.start < byStart.get(i - 1).end) {
+				overlaps++;
+			}
+		}
+		long received = 0;
+		for (Request request : requests) {
+			received += request.ids.length;
+		}
+		int unique = uniqueEvents(requests);
+
+		System.out.printf(Locale.US, "time       %.1f s%n", time / 1000.0);
+		for (int i = 0; i < processes; i++) {
+			System.out.println("process " + i + "  uploaded " + uploaded[i] + " events");
+		}
+		if (killed >= 0) {
+			long takeover = -1;
+			for (Request request : byStart) {
+				if (request.process != killed && request.start >= killedAt) {
+					takeover = request.start - killedAt;
+					break;
+				}
+			}
+			System.out.println("takeover   " + (takeover >= 0 ? takeover + " ms after the kill" : "none"));
+		}
+		System.out.printf(Locale.US, "server     %d events received, %d unique, %d duplicates dropped%n",
+				received, unique, received - unique);
+		System.out.println("overlaps   " + overlaps + " requests of two uploaders at the same time");
+
+		boolean passed = unique == total && overlaps == 0;
+		if (passed) {
+			BenchContext.delete(root);
+		} else {
+			System.out.println("FAILED: " + unique + " of " + total + " events arrived, " + overlaps + " overlaps, see " + root);
+		}
+		return passed;
+	}
+
+	private void startSDK(BenchContext context, BenchServer server, String userID) {
+		Omniata.setLogLevel(intOption("log"));
+		Omniata.setTransport(server);
+		Omniata.setSegmentFileStorage("segment".equals(options.get("storage")));
+		Omniata.initialize(context, API_KEY, userID, "bench");
+		Omniata.setUploadBatchSize(intOption("batch"));
+		Omniata.setTimeoutBounds(intOption("timeoutMin"), intOption("timeoutMax"));
+	}
+
+	/**
+	 * Waits until the logger thread has stored the tracked events
+	 */
+	private boolean awaitPersisted(int events) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(longOption("timeout"));
+		while (OmniataStats.snapshot().getCounter(OmniataStats.Counter.EVENTS_PERSISTED) < events) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private BenchServer.Profile profile() {
+		BenchServer.Profile profile = new BenchServer.Profile();
+		profile.latencyMS 			= longOption("latency");
+		profile.jitterMS 			= longOption("jitter");
+		profile.loss 				= Double.parseDouble(options.get("loss"));
+		profile.errors 				= Double.parseDouble(options.get("errors"));
+		profile.slowBodies 			= Double.parseDouble(options.get("slow"));
+		profile.bodyBytesPerSecond 	= intOption("bodyRate");
+		return profile;
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	private long longOption(String name) {
+		return Long.parseLong(options.get(name));
+	}
+
+	private static void print(String phase, int events, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf(Locale.US, "%-10s %.2f s, %.0f events/s%n", phase, seconds, events / seconds);
+	}
+
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return The sum of the peak use of the heap pools, an upper bound of the peak heap use
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static boolean allReady(File root, int processes) {
+		for (int i = 0; i < processes; i++) {
+			if (!new File(root, "ready-" + i).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int uniqueEvents(List<Request> requests) {
+		Set<String> ids = new HashSet<String>();
+		for (Request request : requests) {
+			Collections.addAll(ids, request.ids);
+		}
+		return ids.size();
+	}
+
+	/**
+	 * @return The requests in the shared log, skipping a line still being written
+	 */
+	private static List<Request> readRequests(File file) throws IOException {
+		List<Request> requests = new ArrayList<Request>();
+		if (!file.exists()) {
+			return requests;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		String log = out.toString("UTF-8");
+		for (String line : log.substring(0, log.lastIndexOf('\n') + 1).split("\n")) {
+			String[] fields = line.split(" ");
+			if (fields.length == 4) {
+				requests.add(new Request(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+						Long.parseLong(fields[2]), fields[3].split(",")));
+			}
+		}
+		return requests;
+	}
+
+	/**
+	 * A request accepted by the server of one of the processes
+	 */
+	private static class Request {
+		final int 		process;
+		final long 		start;
+		final long 		end;
+		final String[] 	ids;
+
+		Request(int process, long start, long end, String[] ids) {
+			this.process = process;
+			this.start 	 = start;
+			this.end 	 = end;
+			this.ids 	 = ids;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.omniata.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The event log operations of the logger and worker threads, on both storages. The SQLite
+ * storage runs on the database through JDBC, so its numbers compare changes of the SDK
+ * rather than predict a device.
+ */
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+	private static final int BACKLOG = 1000;
+	private static final int PEEK 	 = 50;
+
+	@Param({"sqlite", "segment"})
+	public String storage;
+
+	private PersistentBlockingQueue<JSONObject> queue;
+	private JSONObject 							event;
+
+	@Setup
+	public void setUp() {
+		BenchContext context = BenchContext.get();
+		String name = "bench_" + storage;
+		OmniataQueueStorage queueStorage = "sqlite".equals(storage)
+				? new OmniataSQLiteStorage(context, name) : new OmniataSegmentStorage(context, name);
+		queue = new PersistentBlockingQueue<JSONObject>(queueStorage, JSONObject.class);
+		event = BenchEvents.event(0);
+		queue.clear();
+	}
+
+	/**
+	 * Keeps a backlog so that peek reads full pages and poll never finds the queue empty
+	 */
+	@Setup(Level.Iteration)
+	public void fill() {
+		queue.clear();
+		for (int i = 0; i < BACKLOG; i++) {
+			queue.offer(event);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		queue.clear();
+		queue.close();
+	}
+
+	@Benchmark
+	public boolean offer() {
+		return queue.offer(event);
+	}
+
+	@Benchmark
+	public List<JSONObject> peek() {
+		List<JSONObject> events = new ArrayList<JSONObject>(PEEK);
+		queue.peek(PEEK, events);
+		return events;
+	}
+
+	/**
+	 * Polls the head, offering an event back so the size of the queue stays the same
+	 */
+	@Benchmark
+	public JSONObject poll() {
+		queue.offer(event);
+		return queue.poll();
+	}
+}
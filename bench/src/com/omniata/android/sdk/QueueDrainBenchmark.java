@@ -0,0 +1,52 @@
+package com.omniata.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The steady state of a device that keeps up with its events: each event is stored, read
+ * and removed after its send, so the queue becomes empty after every event.
+ */
+@State(Scope.Benchmark)
+public class QueueDrainBenchmark {
+	@Param({"sqlite", "segment"})
+	public String storage;
+
+	private PersistentBlockingQueue<JSONObject> queue;
+	private JSONObject 							event;
+	private List<JSONObject> 					events;
+
+	@Setup
+	public void setUp() {
+		BenchContext context = BenchContext.get();
+		String name = "bench_drain_" + storage;
+		OmniataQueueStorage queueStorage = "sqlite".equals(storage)
+				? new OmniataSQLiteStorage(context, name) : new OmniataSegmentStorage(context, name);
+		queue  = new PersistentBlockingQueue<JSONObject>(queueStorage, JSONObject.class);
+		event  = BenchEvents.event(0);
+		events = new ArrayList<JSONObject>(1);
+		queue.clear();
+	}
+
+	@TearDown
+	public void tearDown() {
+		queue.clear();
+		queue.close();
+	}
+
+	@Benchmark
+	public int drain() {
+		queue.offer(event);
+		events.clear();
+		queue.peek(1, events);
+		return queue.removeFirst(events.size());
+	}
+}
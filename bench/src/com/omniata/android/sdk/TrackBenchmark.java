@@ -0,0 +1,50 @@
+package com.omniata.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Tracking an event on the caller's thread: validation, the deep copy of the parameters
+ * and finalizing the event. The event buffer drops the events so that the logger thread
+ * isn't measured.
+ */
+@State(Scope.Benchmark)
+public class TrackBenchmark {
+	private OmniataTracker 	tracker;
+	private JSONObject 		parameters;
+
+	@Setup
+	public void setUp() {
+		BenchContext context = BenchContext.get();
+		List<OmniataTracker> trackers = new ArrayList<OmniataTracker>();
+		OmniataEventWorker eventWorker = new OmniataEventWorker(context, trackers);
+		LinkedBlockingQueue<OmniataEventLogger.Entry> eventBuffer = new LinkedBlockingQueue<OmniataEventLogger.Entry>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void put(OmniataEventLogger.Entry entry) {
+			}
+		};
+		tracker = new OmniataTracker("bench_track", new OmniataSegmentStorage(context, "bench_track"),
+				"a514370b", "user-1", eventBuffer, eventWorker, new OmniataSampler());
+		trackers.add(tracker);
+		parameters = BenchEvents.parameters();
+	}
+
+	@Benchmark
+	public void track() {
+		tracker.track("om_level_end", parameters);
+	}
+
+	@Benchmark
+	public void _track() {
+		tracker._track("om_level_end", parameters, 1.0);
+	}
+}
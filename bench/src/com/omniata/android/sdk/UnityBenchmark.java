@@ -0,0 +1,52 @@
+package com.omniata.android.sdk;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing the events passed from Unity into the parameters tracked
+ */
+@State(Scope.Benchmark)
+public class UnityBenchmark {
+	private static final int BATCH_SIZE = 20;
+
+	private String para;
+	private String batch;
+
+	@Setup
+	public void setUp() {
+		para = "level=12\nscore=48250\nstage=Dark%20Forest\ncharacter=mage\nduration=183.5\n"
+			 + "boosters=2\nfirst_try=false\ncurrency=EUR\namount=0.99\ncampaign=spring_sale%2F2014%20%C3%A4%2B%C3%B6\n";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			sb.append("om_level_end\n").append(para).append('\n');
+		}
+		batch = sb.toString();
+	}
+
+	@Benchmark
+	public JSONObject parseParameters() {
+		return OmniataUnityParser.parseParameters(para);
+	}
+
+	@Benchmark
+	public int parseBatch(final Blackhole blackhole) {
+		return OmniataUnityParser.parseBatch(batch, new OmniataUnityParser.Handler() {
+
+			@Override
+			public boolean accept(String eventType) {
+				return true;
+			}
+
+			@Override
+			public boolean onEvent(String eventType, JSONObject parameters) {
+				blackhole.consume(parameters);
+				return true;
+			}
+		});
+	}
+}
@@ -0,0 +1,18 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stand-in for the Android class on a plain JVM, declaring the methods the SDK uses
+ */
+public abstract class Context {
+	public static final String CONNECTIVITY_SERVICE = "connectivity";
+
+	public abstract Context getApplicationContext();
+
+	public abstract Object getSystemService(String name);
+
+	public abstract File getFilesDir();
+
+	public abstract File getDatabasePath(String name);
+}
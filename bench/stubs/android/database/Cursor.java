@@ -0,0 +1,22 @@
+package android.database;
+
+/**
+ * Stand-in for the Android interface on a plain JVM, declaring the methods the SDK uses
+ */
+public interface Cursor {
+	int getCount();
+
+	boolean moveToFirst();
+
+	boolean moveToNext();
+
+	boolean isNull(int column);
+
+	int getInt(int column);
+
+	long getLong(int column);
+
+	String getString(int column);
+
+	void close();
+}
@@ -0,0 +1,70 @@
+package android.database.sqlite;
+
+import java.util.List;
+
+import android.database.Cursor;
+
+/**
+ * Stand-in for the Android class on a plain JVM, holding the rows of a query read in full
+ */
+public class SQLiteCursor implements Cursor {
+	private final List<Object[]> rows;
+	private int 				 position = -1;
+
+	/* package */ SQLiteCursor(List<Object[]> rows) {
+		this.rows = rows;
+	}
+
+	@Override
+	public int getCount() {
+		return rows.size();
+	}
+
+	@Override
+	public boolean moveToFirst() {
+		position = 0;
+		return position < rows.size();
+	}
+
+	@Override
+	public boolean moveToNext() {
+		position = Math.min(position + 1, rows.size());
+		return position < rows.size();
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return value(column) == null;
+	}
+
+	@Override
+	public int getInt(int column) {
+		return (int)getLong(column);
+	}
+
+	@Override
+	public long getLong(int column) {
+		Object value = value(column);
+		if (value instanceof Number) {
+			return ((Number)value).longValue();
+		}
+		return value != null ? Long.parseLong(value.toString()) : 0;
+	}
+
+	@Override
+	public String getString(int column) {
+		Object value = value(column);
+		return value != null ? value.toString() : null;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private Object value(int column) {
+		if (position < 0 || position >= rows.size()) {
+			throw new IllegalStateException("Cursor not on a row");
+		}
+		return rows.get(position)[column];
+	}
+}
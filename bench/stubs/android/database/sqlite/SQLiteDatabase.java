@@ -0,0 +1,225 @@
+package android.database.sqlite;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+/**
+ * Stand-in for the Android class on a plain JVM, backed by a JDBC connection to the
+ * SQLite database, e.g. through the sqlite-jdbc driver. Only the methods the SDK uses are
+ * provided. Like on Android one connection is shared by all threads.
+ */
+public class SQLiteDatabase {
+
+	public interface CursorFactory {
+	}
+
+	private final Connection connection;
+	// Nesting depth of the transaction, and whether every level was marked successful
+	private int 			 transactions;
+	private boolean 		 successful;
+	private boolean 		 failed;
+
+	private SQLiteDatabase(Connection connection) {
+		this.connection = connection;
+	}
+
+	public static SQLiteDatabase openOrCreateDatabase(File file, CursorFactory factory) {
+		try {
+			Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+			// Android waits as long for a database locked by another process
+			Statement statement = connection.createStatement();
+			try {
+				statement.execute("PRAGMA busy_timeout = 2500");
+			} finally {
+				statement.close();
+			}
+			return new SQLiteDatabase(connection);
+		} catch (SQLException e) {
+			throw wrap(e);
+		}
+	}
+
+	public synchronized Cursor rawQuery(String sql, String[] selectionArgs) {
+		try {
+			PreparedStatement statement = connection.prepareStatement(sql);
+			try {
+				if (selectionArgs != null) {
+					for (int i = 0; i < selectionArgs.length; i++) {
+						statement.setString(i + 1, selectionArgs[i]);
+					}
+				}
+				List<Object[]> rows = new ArrayList<Object[]>();
+				// Some pragmas return no result set at all
+				if (statement.execute()) {
+					ResultSet rs = statement.getResultSet();
+					try {
+						int columns = rs.getMetaData().getColumnCount();
+						while (rs.next()) {
+							Object[] row = new Object[columns];
+							for (int i = 0; i < columns; i++) {
+								row[i] = rs.getObject(i + 1);
+							}
+							rows.add(row);
+						}
+					} finally {
+						rs.close();
+					}
+				}
+				return new SQLiteCursor(rows);
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw wrap(e);
+		}
+	}
+
+	public void execSQL(String sql) {
+		execSQL(sql, new Object[0]);
+	}
+
+	public synchronized void execSQL(String sql, Object[] bindArgs) {
+		try {
+			PreparedStatement statement = connection.prepareStatement(sql);
+			try {
+				for (int i = 0; i < bindArgs.length; i++) {
+					statement.setObject(i + 1, bindArgs[i]);
+				}
+				statement.execute();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw wrap(e);
+		}
+	}
+
+	public synchronized int delete(String table, String whereClause, String[] whereArgs) {
+		try {
+			PreparedStatement statement = connection.prepareStatement("DELETE FROM " + table
+					+ (whereClause != null ? " WHERE " + whereClause : ""));
+			try {
+				if (whereArgs != null) {
+					for (int i = 0; i < whereArgs.length; i++) {
+						statement.setString(i + 1, whereArgs[i]);
+					}
+				}
+				return statement.executeUpdate();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw wrap(e);
+		}
+	}
+
+	public synchronized SQLiteStatement compileStatement(String sql) {
+		try {
+			return new SQLiteStatement(this, connection.prepareStatement(sql));
+		} catch (SQLException e) {
+			throw wrap(e);
+		}
+	}
+
+	public boolean enableWriteAheadLogging() {
+		Cursor c = rawQuery("PRAGMA journal_mode = WAL;", null);
+		try {
+			return c.moveToFirst() && "wal".equalsIgnoreCase(c.getString(0));
+		} finally {
+			c.close();
+		}
+	}
+
+	public synchronized void beginTransaction() {
+		try {
+			if (transactions++ == 0) {
+				connection.setAutoCommit(false);
+				successful = false;
+				failed 	   = false;
+			}
+		} catch (SQLException e) {
+			transactions--;
+			throw wrap(e);
+		}
+	}
+
+	public synchronized void setTransactionSuccessful() {
+		successful = true;
+	}
+
+	public synchronized void endTransaction() {
+		if (!successful) {
+			failed = true;
+		}
+		successful = false;
+		if (--transactions > 0) {
+			return;
+		}
+		try {
+			if (failed) {
+				connection.rollback();
+			} else {
+				connection.commit();
+			}
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			throw wrap(e);
+		}
+	}
+
+	public int getVersion() {
+		Cursor c = rawQuery("PRAGMA user_version;", null);
+		try {
+			return c.moveToFirst() ? c.getInt(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	public void setVersion(int version) {
+		execSQL("PRAGMA user_version = " + version + ";");
+	}
+
+	public synchronized boolean isOpen() {
+		try {
+			return !connection.isClosed();
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			throw wrap(e);
+		}
+	}
+
+	/* package */ long lastInsertRowId() throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery("SELECT last_insert_rowid();");
+			try {
+				return rs.next() ? rs.getLong(1) : -1;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/* package */ static SQLiteException wrap(SQLException e) {
+		return new SQLiteException(e.getMessage(), e);
+	}
+}
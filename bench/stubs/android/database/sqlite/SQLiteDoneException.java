@@ -0,0 +1,11 @@
+package android.database.sqlite;
+
+/**
+ * Stand-in for the Android class on a plain JVM, thrown when a simple query returns no row
+ */
+public class SQLiteDoneException extends SQLiteException {
+	private static final long serialVersionUID = 1L;
+
+	public SQLiteDoneException() {
+	}
+}
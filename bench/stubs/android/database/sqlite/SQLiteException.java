@@ -0,0 +1,19 @@
+package android.database.sqlite;
+
+/**
+ * Stand-in for the Android class on a plain JVM
+ */
+public class SQLiteException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public SQLiteException() {
+	}
+
+	public SQLiteException(String error) {
+		super(error);
+	}
+
+	public SQLiteException(String error, Throwable cause) {
+		super(error, cause);
+	}
+}
@@ -0,0 +1,83 @@
+package android.database.sqlite;
+
+import java.io.File;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the Android class on a plain JVM. Creates or upgrades the database on
+ * first use like the original, by the version stored in user_version.
+ */
+public abstract class SQLiteOpenHelper {
+	private final Context 							context;
+	private final String 							name;
+	private final SQLiteDatabase.CursorFactory 		factory;
+	private final int 								version;
+	private SQLiteDatabase 							database;
+
+	public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
+		this.context = context;
+		this.name 	 = name;
+		this.factory = factory;
+		this.version = version;
+	}
+
+	public String getDatabaseName() {
+		return name;
+	}
+
+	public synchronized SQLiteDatabase getWritableDatabase() {
+		if (database != null && database.isOpen()) {
+			return database;
+		}
+
+		File file = context.getDatabasePath(name);
+		File directory = file.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new SQLiteException("Can't create " + directory);
+		}
+
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, factory);
+		try {
+			int current = db.getVersion();
+			if (current != version) {
+				db.beginTransaction();
+				try {
+					if (current == 0) {
+						onCreate(db);
+					} else {
+						onUpgrade(db, current, version);
+					}
+					db.setVersion(version);
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+			onOpen(db);
+		} catch (RuntimeException e) {
+			db.close();
+			throw e;
+		}
+		database = db;
+		return db;
+	}
+
+	public SQLiteDatabase getReadableDatabase() {
+		return getWritableDatabase();
+	}
+
+	public synchronized void close() {
+		if (database != null) {
+			database.close();
+			database = null;
+		}
+	}
+
+	public abstract void onCreate(SQLiteDatabase db);
+
+	public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+	public void onOpen(SQLiteDatabase db) {
+	}
+}
@@ -0,0 +1,96 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Stand-in for the Android class on a plain JVM, a compiled JDBC statement
+ */
+public class SQLiteStatement {
+	private final SQLiteDatabase 	db;
+	private final PreparedStatement statement;
+
+	/* package */ SQLiteStatement(SQLiteDatabase db, PreparedStatement statement) {
+		this.db 	   = db;
+		this.statement = statement;
+	}
+
+	public void bindString(int index, String value) {
+		try {
+			statement.setString(index, value);
+		} catch (SQLException e) {
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public void bindLong(int index, long value) {
+		try {
+			statement.setLong(index, value);
+		} catch (SQLException e) {
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+
+	public void execute() {
+		synchronized(db) {
+			try {
+				statement.execute();
+			} catch (SQLException e) {
+				throw SQLiteDatabase.wrap(e);
+			}
+		}
+	}
+
+	/**
+	 * @return The id of the inserted row, -1 if no row was inserted
+	 */
+	public long executeInsert() {
+		synchronized(db) {
+			try {
+				if (statement.executeUpdate() == 0) {
+					return -1;
+				}
+				return db.lastInsertRowId();
+			} catch (SQLException e) {
+				throw SQLiteDatabase.wrap(e);
+			}
+		}
+	}
+
+	public int executeUpdateDelete() {
+		synchronized(db) {
+			try {
+				return statement.executeUpdate();
+			} catch (SQLException e) {
+				throw SQLiteDatabase.wrap(e);
+			}
+		}
+	}
+
+	public long simpleQueryForLong() {
+		synchronized(db) {
+			try {
+				ResultSet rs = statement.executeQuery();
+				try {
+					if (!rs.next()) {
+						throw new SQLiteDoneException();
+					}
+					return rs.getLong(1);
+				} finally {
+					rs.close();
+				}
+			} catch (SQLException e) {
+				throw SQLiteDatabase.wrap(e);
+			}
+		}
+	}
+
+	public void close() {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			throw SQLiteDatabase.wrap(e);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package android.net;
+
+/**
+ * Stand-in for the Android class on a plain JVM, reporting a fixed network
+ */
+public class ConnectivityManager {
+	public static final int TYPE_MOBILE = 0;
+	public static final int TYPE_WIFI 	= 1;
+
+	private final NetworkInfo activeNetwork;
+
+	public ConnectivityManager(NetworkInfo activeNetwork) {
+		this.activeNetwork = activeNetwork;
+	}
+
+	public NetworkInfo getActiveNetworkInfo() {
+		return activeNetwork;
+	}
+}
@@ -0,0 +1,22 @@
+package android.net;
+
+/**
+ * Stand-in for the Android class on a plain JVM
+ */
+public class NetworkInfo {
+	private final int 	  type;
+	private final boolean connected;
+
+	public NetworkInfo(int type, boolean connected) {
+		this.type 	   = type;
+		this.connected = connected;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+}
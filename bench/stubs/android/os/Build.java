@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * Stand-in for the Android class on a plain JVM, describing a device at the
+ * project's target API level
+ */
+public class Build {
+	public static final String MODEL 	= "jvm";
+	public static final String DEVICE 	= "jvm";
+	public static final String HARDWARE = "jvm";
+	public static final String SERIAL 	= "unknown";
+
+	public static class VERSION {
+		public static final int SDK_INT = VERSION_CODES.KITKAT;
+	}
+
+	public static class VERSION_CODES {
+		public static final int GINGERBREAD = 9;
+		public static final int HONEYCOMB 	= 11;
+		public static final int KITKAT 		= 19;
+	}
+}
@@ -0,0 +1,11 @@
+package android.provider;
+
+/**
+ * Stand-in for the Android class on a plain JVM
+ */
+public final class Settings {
+
+	public static final class Secure {
+		public static final String ANDROID_ID = "android_id";
+	}
+}
@@ -0,0 +1,42 @@
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Stand-in for the Android class on a plain JVM, logging to standard error
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG 	= 3;
+	public static final int INFO 	= 4;
+	public static final int WARN 	= 5;
+	public static final int ERROR 	= 6;
+	public static final int ASSERT 	= 7;
+
+	private Log() {
+	}
+
+	public static int println(int priority, String tag, String msg) {
+		String line = "VDIWEA".charAt(Math.max(0, Math.min(5, priority - VERBOSE))) + "/" + tag + ": " + msg;
+		System.err.println(line);
+		return line.length();
+	}
+
+	public static int i(String tag, String msg) {
+		return println(INFO, tag, msg);
+	}
+
+	public static int e(String tag, String msg) {
+		return println(ERROR, tag, msg);
+	}
+
+	public static String getStackTraceString(Throwable t) {
+		if (t == null) {
+			return "";
+		}
+		StringWriter sw = new StringWriter();
+		t.printStackTrace(new PrintWriter(sw));
+		return sw.toString();
+	}
+}
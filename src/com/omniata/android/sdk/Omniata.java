@@ -1,11 +1,17 @@
 package com.omniata.android.sdk;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLDecoder;
-import java.util.Iterator;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.json.JSONArray;
@@ -20,9 +26,13 @@ public class Omniata {
 	
 	private static final String TAG       = "Omniata";
 	private static final String EVENT_LOG = "events";
+	private static final String DEFAULT_TRACKER = "default";
 	private static final String SDK_VERSION = "android-2.0.1";
 	
 	private static Omniata instance;
+	private static volatile JSONObject automaticParameters;
+	private static boolean segmentFileStorage;
+	private static boolean warmUp;
 	
 	
 	/**
@@ -47,10 +57,44 @@ public class Omniata {
 		}
 	}
 	
+	/**
+	 * Sets the transport used for the HTTP requests of the SDK, e.g. a local in-process
+	 * server for testing. Passing null restores the default HttpURLConnection based transport.
+	 * @param transport
+	 */
+	public static void setTransport(OmniataTransport transport) {
+		OmniataUtils.setTransport(transport);
+	}
+	
 	public static void setLogLevel(int priority) {
 		OmniataLog.setPriority(priority);
 	}
 	
+	/**
+	 * Keeps the latest SDK log messages in a fixed size in-memory ring, independent
+	 * of the log level, so they can be dumped for field diagnostics with {@link #getTrace()}
+	 * 
+	 * @param capacity Number of messages kept, 0 disables the trace
+	 * @param priority Minimum priority of the traced messages, e.g. android.util.Log.DEBUG
+	 */
+	public static void setTrace(int capacity, int priority) {
+		OmniataLog.setTrace(capacity, priority);
+	}
+	
+	/**
+	 * @return The messages in the trace ring, oldest first
+	 */
+	public static String getTrace() {
+		return OmniataLog.dumpTrace();
+	}
+	
+	/**
+	 * Returns the current SDK stats: queue depth, send latencies, retries, bytes sent and discards
+	 */
+	public static OmniataStats.Snapshot getStats() {
+		return OmniataStats.snapshot();
+	}
+	
 	
 	/**
 	 * Tracks a parameterless event
@@ -73,49 +117,205 @@ public class Omniata {
 	public static void track(String eventType, JSONObject parameters) throws IllegalArgumentException, IllegalStateException {
 		synchronized(Omniata.class) {
 			assertInitialized();
-			instance._track(eventType, parameters);
+			instance.tracker.track(eventType, parameters);
+		}
+	}
+	
+	/**
+	 * Returns a tracker with its own API key, user id and event queue, e.g. for a separate
+	 * title or plugin in the same app. Trackers share the threads and connections of the SDK.
+	 * 
+	 * @param name Identifies the tracker and its queue, letters, digits and underscores
+	 * @param apiKey
+	 * @param userID
+	 * @return The tracker with the given name, created if needed. An existing tracker
+	 * keeps its API key and user id, use its setters to change them.
+	 * @throws IllegalArgumentException if any of the parameters is invalid
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static OmniataTracker getTracker(String name, String apiKey, String userID) throws IllegalArgumentException, IllegalStateException {
+		if (name == null || !name.matches("[A-Za-z0-9_]+")) {
+			throw new IllegalArgumentException("Tracker name is invalid");
+		}
+		OmniataUtils.assertApiKeyValid(apiKey);
+		OmniataUtils.assertUserIdValid(userID);
+		
+		synchronized(Omniata.class) {
+			assertInitialized();
+			return instance._getTracker(name, apiKey, userID);
+		}
+	}
+	
+	/**
+	 * Aggregates events of the given type in memory instead of tracking each one. At the end of
+	 * every time window one event per group is tracked with om_count and the sum, min and max
+	 * of each numeric parameter, e.g. damage_sum, damage_min and damage_max.
+	 * 
+	 * @param eventType
+	 * @param windowMillis Length of the time window in milliseconds
+	 * @param groupBy Parameters whose values identify a group, e.g. "level"
+	 * @throws IllegalArgumentException if eventType is invalid or windowMillis isn't positive
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void aggregate(String eventType, long windowMillis, String... groupBy) throws IllegalArgumentException, IllegalStateException {
+		OmniataUtils.assertValidEventType(eventType);
+		if (windowMillis <= 0) {
+			throw new IllegalArgumentException("Aggregation window is invalid");
+		}
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.tracker.aggregate(eventType, windowMillis, groupBy);
+		}
+	}
+	
+	/**
+	 * Stops aggregating events of the given type, the accumulated events are tracked
+	 * @param eventType
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void stopAggregating(String eventType) throws IllegalStateException {
+		OmniataTracker tracker;
+		synchronized(Omniata.class) {
+			assertInitialized();
+			tracker = instance.tracker;
+		}
+		tracker.stopAggregating(eventType);
+	}
+	
+	/**
+	 * Sends the events tracked so far, including accumulated aggregates, skipping any retry wait.
+	 * 
+	 * @param timeoutMillis Time after which the returned future gives up
+	 * @return Future completing with true once every event tracked before the call has been
+	 * stored and sent, or with false on timeout. Doesn't complete while the SDK is paused.
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static Future<Boolean> flush(long timeoutMillis) throws IllegalStateException {
+		OmniataTracker tracker;
+		synchronized(Omniata.class) {
+			assertInitialized();
+			tracker = instance.tracker;
+		}
+		return tracker.flush(timeoutMillis);
+	}
+	
+	/**
+	 * Pauses sending events, e.g. when the app goes to the background. The sender thread stops.
+	 * Events tracked while paused are still stored, and sent after resume(). Use stop() to
+	 * also close the database.
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void pause() throws IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.eventWorker.stop();
+		}
+	}
+	
+	/**
+	 * Stops all SDK threads once the events tracked so far have been stored, and closes the
+	 * database. Events tracked while stopped are kept in memory until resume().
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void stop() throws IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.eventWorker.stop();
+			instance.eventLogger.stop();
+		}
+	}
+	
+	/**
+	 * Resumes storing and sending events after pause() or stop()
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void resume() throws IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.eventLogger.start();
+			instance.eventWorker.start();
+		}
+	}
+	
+	/**
+	 * Tracks the aggregated events accumulated so far without waiting for their windows to close
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void flushAggregates() throws IllegalStateException {
+		OmniataTracker tracker;
+		synchronized(Omniata.class) {
+			assertInitialized();
+			tracker = instance.tracker;
 		}
+		tracker.flushAggregates();
 	}
 	
 	/**
 	 * Track Load with unity version info getting from unity code.
-	 * @param para
+	 * @param para URL encoded key=value lines
+	 * @throws IllegalStateException if SDK not initialized
 	 */
-	public static void unityTrackLoad(String para){
-		trackLoad(unityJsonGenerator(para));
+	public static void unityTrackLoad(String para) throws IllegalStateException {
+		trackLoad(OmniataUnityParser.parseParameters(para));
 	}
 	
-	  /**
-	  * Track custom event for usage in Unity
-	  * @param eventType
-	  * @param para				
-	  */
-	 public static void unityTrack(String eventType, String para){
-	     instance._track(eventType, unityJsonGenerator(para));
-	 }
-	 
-	 /**
-	  * String from Unity to JSONobject, string from Unity is URL Encoded.
-	  * @param para
-	  * @return
-	  */
-	 private static JSONObject unityJsonGenerator(String para){
-		 JSONObject parameters = new JSONObject();
-	     String[] paraArray=para.split("\n");
-	     String[] paraPair;
-	     // Convert string to JsonObject
-	     for (int i=0;i<paraArray.length;i++){
-	         paraPair = paraArray[i].split("=");
-	         try{
-	         	parameters.put(URLDecoder.decode(paraPair[0], "UTF-8"), URLDecoder.decode(paraPair[1], "UTF-8"));
-	            //parameters.put(paraPair[0], paraPair[1]);
-	         } catch(Exception e){
-	             // do something
-	        	 OmniataLog.e(TAG, e.toString());
-	         }
-	     }
-	     return parameters;
-	 }
+	/**
+	 * Track custom event for usage in Unity
+	 * @param eventType
+	 * @param para URL encoded key=value lines
+	 * @throws IllegalArgumentException if eventType is null or empty
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void unityTrack(String eventType, String para) throws IllegalArgumentException, IllegalStateException {
+		final OmniataTracker tracker;
+		synchronized(Omniata.class) {
+			assertInitialized();
+			tracker = instance.tracker;
+		}
+		// Sampled out events are dropped without parsing their parameters
+		double rate = tracker.sample(eventType);
+		if (rate > 0.0) {
+			tracker.trackOwned(eventType, OmniataUnityParser.parseParameters(para), rate);
+		}
+	}
+	
+	/**
+	 * Tracks several custom events in one call for usage in Unity, e.g. the events of a frame.
+	 * Events are separated by empty lines, the first line of an event is its URL encoded type
+	 * and the following lines are URL encoded key=value parameters. Events with an invalid
+	 * type are skipped.
+	 * @param events
+	 * @return The number of events tracked
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static int unityTrackBatch(String events) throws IllegalStateException {
+		final OmniataTracker tracker;
+		synchronized(Omniata.class) {
+			assertInitialized();
+			tracker = instance.tracker;
+		}
+		return OmniataUnityParser.parseBatch(events, new OmniataUnityParser.Handler() {
+			// Rate of the event accepted last, its parameters follow
+			private double rate;
+			
+			@Override
+			public boolean accept(String eventType) {
+				try {
+					rate = tracker.sample(eventType);
+					return rate > 0.0;
+				} catch (IllegalArgumentException e) {
+					OmniataLog.w(TAG, "Skipping event: {}", e.getMessage());
+					return false;
+				}
+			}
+			
+			@Override
+			public boolean onEvent(String eventType, JSONObject parameters) {
+				tracker.trackOwned(eventType, parameters, rate);
+				return true;
+			}
+		});
+	}
 	 
 	/**
 	 * unity_log log method for using in Unity3D 
@@ -146,10 +346,10 @@ public class Omniata {
 	 * @throws IllegalStateException if SDK not initialized
 	 */
 	public static void trackLoad(JSONObject parameters) throws IllegalStateException {
-		if (parameters == null) {
-			parameters = new JSONObject();
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.tracker.trackLoad(parameters);
 		}
-		track("om_load", OmniataUtils.mergeJSON(getAutomaticParameters(), parameters));
 	}
 	
 	/**
@@ -161,8 +361,7 @@ public class Omniata {
 	public static void setUserId(String userId) throws IllegalArgumentException, IllegalStateException {
 		synchronized(Omniata.class) {
 			assertInitialized();
-			OmniataUtils.assertUserIdValid(userId);			
-			instance._setUserId(userId);
+			instance.tracker.setUserId(userId);
 		}
 	}
 	
@@ -175,8 +374,7 @@ public class Omniata {
 	public static void setApiKey(String apiKey) throws IllegalArgumentException, IllegalStateException {
 		synchronized(Omniata.class) {
 			assertInitialized();
-			OmniataUtils.assertApiKeyValid(apiKey);
-			instance._setApiKey(apiKey);
+			instance.tracker.setApiKey(apiKey);
 		}
 	}
 	
@@ -190,7 +388,139 @@ public class Omniata {
 	public static void channel(int channelId, OmniataChannelResponseHandler handler) throws IllegalStateException {
 		synchronized(Omniata.class) {
 			assertInitialized();			
-			instance._channel(channelId, handler);
+			instance.tracker.channel(channelId, handler);
+		}
+	}
+	
+	/**
+	 * Fetches content for this user from several channels using a single request
+	 * when the Channel API supports it, otherwise sequentially over one connection.
+	 * 
+	 * @param channelIds The ids of the channels
+	 * @param handlers Handlers for the channels, handlers[i] receives the content of channelIds[i]
+	 * @throws IllegalArgumentException if channelIds and handlers differ in length
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void channels(int[] channelIds, OmniataChannelResponseHandler[] handlers) throws IllegalArgumentException, IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.tracker.channels(channelIds, handlers);
+		}
+	}
+	
+	/**
+	 * Fetches content for this user from several channels, see {@link #channels(int[], OmniataChannelResponseHandler[])}
+	 * 
+	 * @param channelIds The ids of the channels
+	 * @param handler An object implementing OmniataChannelResponseHandler, called once per channel
+	 * @throws IllegalArgumentException if channelIds is null
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void channels(int[] channelIds, OmniataChannelResponseHandler handler) throws IllegalArgumentException, IllegalStateException {
+		if (channelIds == null) {
+			throw new IllegalArgumentException("Channel ids are null");
+		}
+		OmniataChannelResponseHandler[] handlers = new OmniataChannelResponseHandler[channelIds.length];
+		Arrays.fill(handlers, handler);
+		channels(channelIds, handlers);
+	}
+	
+	/**
+	 * Subscribes a listener to the events tracked by all trackers of this process, e.g. to
+	 * feed an on-device achievement engine or a debug overlay. The listener gets each event
+	 * as it is queued for sending, on a background thread. Events wait for the listener in a
+	 * queue of the given capacity. When the queue is full the event is dropped for this
+	 * listener and counted in {@link OmniataEventSubscription#getDroppedCount()}, so a slow
+	 * listener never slows down tracking or sending.
+	 * @param listener
+	 * @param queueCapacity Maximum number of events waiting for the listener
+	 * @return The subscription, cancel it to stop receiving events
+	 * @throws IllegalArgumentException if listener is null or queueCapacity isn't positive
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static OmniataEventSubscription subscribe(OmniataEventListener listener, int queueCapacity) throws IllegalArgumentException, IllegalStateException {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener is null");
+		}
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity is invalid");
+		}
+		synchronized(Omniata.class) {
+			assertInitialized();
+			return OmniataEventTap.add(listener, queueCapacity);
+		}
+	}
+	
+	/**
+	 * Samples events of a type. Whether an event is kept depends on a hash of the user id and
+	 * the event type, so each user's events of the type are either all kept or all dropped.
+	 * Kept events carry the rate as om_sample_rate so the server can weight them. Dropped
+	 * events cost nothing more than the decision and are counted as EVENTS_SAMPLED_OUT in
+	 * the SDK stats. Applies to all trackers.
+	 * @param eventType
+	 * @param rate Share of users whose events of the type are kept, from 0 to 1, 1 stops sampling
+	 * @throws IllegalArgumentException if eventType is invalid or rate out of range
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void setSampleRate(String eventType, double rate) throws IllegalArgumentException, IllegalStateException {
+		OmniataUtils.assertValidEventType(eventType);
+		OmniataSampler.assertRateValid(rate);
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.sampler.setRate(eventType, rate);
+		}
+	}
+	
+	/**
+	 * Replaces the sampling rules, see {@link #setSampleRate(String, double)}. Invalid rates
+	 * are skipped.
+	 * @param rates Object mapping event types to rates, e.g. {"enemy_hit": 0.1}
+	 * @throws IllegalArgumentException if rates is null
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void setSampleRates(JSONObject rates) throws IllegalArgumentException, IllegalStateException {
+		if (rates == null) {
+			throw new IllegalArgumentException("Sample rates are null");
+		}
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.sampler.setRates(rates);
+		}
+	}
+	
+	/**
+	 * Loads the sampling rules from a channel, so sampling can be tuned without an app
+	 * update. The rules are read from the first item of the content having an
+	 * "om_sample_rates" object, e.g. [{"om_sample_rates": {"enemy_hit": 0.1}}], and replace
+	 * the current rules. If loading fails the current rules stay.
+	 * @param channelId
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void loadSampleRates(int channelId) throws IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			final OmniataSampler sampler = instance.sampler;
+			instance.tracker.channel(channelId, new OmniataChannelResponseHandler() {
+				
+				@Override
+				public void onSuccess(int channel, JSONArray content) {
+					for (int i = 0; i < content.length(); i++) {
+						JSONObject item = content.optJSONObject(i);
+						JSONObject rates = item != null ? item.optJSONObject("om_sample_rates") : null;
+						if (rates != null) {
+							sampler.setRates(rates);
+							OmniataLog.i(TAG, "Sample rates loaded from channel {}", channel);
+							return;
+						}
+					}
+					OmniataLog.w(TAG, "No sample rates in channel {}", channel);
+				}
+				
+				@Override
+				public void onError(int channel, Exception e) {
+					OmniataLog.w(TAG, "Loading sample rates failed: {}", e.toString());
+				}
+			});
 		}
 	}
 	
@@ -215,26 +545,9 @@ public class Omniata {
 	 * @throws IllegalStateException if SDK not initialized 
 	 */
 	public static void trackRevenue(double total, String currencyCode, JSONObject additionalParams) throws IllegalStateException {
-		JSONObject parameters = new JSONObject();
-
-		try {
-			parameters.put("total", total); // Java doesn't use locale-specific formatting, so this is safe
-			parameters.put("currency_code", currencyCode);
-			
-			if (additionalParams != null) {
-				@SuppressWarnings("unchecked")
-				Iterator<String> i = (Iterator<String>)additionalParams.keys();
-				while(i.hasNext()) {
-					String key = (String)i.next();
-					Object val = additionalParams.get(key);
-					parameters.put(key, val);
-				}
-			}
-			
-			track("om_revenue", parameters);
-			
-		} catch (JSONException e) {
-			OmniataLog.e(TAG, e.toString());
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.tracker.trackRevenue(total, currencyCode, additionalParams);
 		}
 	}
 	
@@ -252,7 +565,195 @@ public class Omniata {
 		track("om_gcm_disable");
 	}
 	
+	/**
+	 * Sets the maximum number of events uploaded in one request. Batches are sent in an
+	 * envelope where the fields shared by all events appear once. 1 (the default) sends
+	 * each event in its own request.
+	 * @param batchSize
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void setUploadBatchSize(int batchSize) throws IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.eventWorker.setBatchSize(batchSize);
+		}
+	}
+	
+	/**
+	 * Sets the bounds of the HTTP connect and read timeouts. Within the bounds the timeouts
+	 * follow the latencies recently observed on the current type of network (Wi-Fi, mobile),
+	 * so a stalled connection is given up sooner on a network that is usually fast. The
+	 * maximum is used until enough requests have completed. The defaults are 5 and 30 seconds.
+	 * @param minMillis Minimum timeout in milliseconds
+	 * @param maxMillis Maximum timeout in milliseconds
+	 * @throws IllegalArgumentException if minMillis isn't positive or exceeds maxMillis
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void setTimeoutBounds(int minMillis, int maxMillis) throws IllegalArgumentException, IllegalStateException {
+		if (minMillis <= 0 || minMillis > maxMillis) {
+			throw new IllegalArgumentException("Timeout bounds are invalid");
+		}
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.eventWorker.setTimeoutBounds(minMillis, maxMillis);
+			instance.channelTimeouts.setBounds(minMillis, maxMillis);
+		}
+	}
+	
+	/**
+	 * Enables hedged channel requests. When a channel request hasn't completed within the
+	 * 95th percentile latency of the recent channel requests, a second request is sent and
+	 * the first response is used. This bounds the tail latency of channel content at the
+	 * cost of occasional duplicate requests. Applies to {@link #channel(int, OmniataChannelResponseHandler)}.
+	 * @param enabled
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void setChannelHedging(boolean enabled) throws IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			OmniataChannelFetcher.setHedging(enabled);
+		}
+	}
+	
+	/**
+	 * Enables warming up the connections to the Omniata servers in initialize(). The event
+	 * and channel hosts are resolved and connected to in the background, so the first event
+	 * and channel requests don't wait for DNS and the TCP and TLS handshakes. Must be called
+	 * before initialize().
+	 * @param enabled
+	 * @throws IllegalStateException if SDK already initialized
+	 */
+	public static void setWarmUp(boolean enabled) throws IllegalStateException {
+		synchronized(Omniata.class) {
+			if (instance != null) {
+				throw new IllegalStateException("SDK already initialized");
+			}
+			warmUp = enabled;
+		}
+	}
+	
+	/**
+	 * Stores events in append-only segment files instead of SQLite, which makes storing and
+	 * removing events cheaper for high event volumes. Events stored in SQLite before are moved
+	 * to the segment files. Must be called before initialize(), can't be used together with
+	 * setMultiProcess().
+	 * @param enabled
+	 * @throws IllegalStateException if SDK already initialized
+	 */
+	public static void setSegmentFileStorage(boolean enabled) throws IllegalStateException {
+		synchronized(Omniata.class) {
+			if (instance != null) {
+				throw new IllegalStateException("SDK already initialized");
+			}
+			segmentFileStorage = enabled;
+		}
+	}
+
+	/**
+	 * Sets the maximum age of events. Older events, e.g. ones tracked during a long offline
+	 * period, are dropped before uploading and counted as EVENTS_EXPIRED in the SDK stats.
+	 * @param maxAgeMillis Age in milliseconds, 0 (the default) keeps events until sent
+	 * @throws IllegalArgumentException if maxAgeMillis is negative
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static void setMaxEventAge(long maxAgeMillis) throws IllegalArgumentException, IllegalStateException {
+		if (maxAgeMillis < 0) {
+			throw new IllegalArgumentException("Maximum event age is invalid");
+		}
+		synchronized(Omniata.class) {
+			assertInitialized();
+			instance.eventWorker.setMaxEventAge(maxAgeMillis);
+		}
+	}
+
+	/**
+	 * Enables support for using the SDK from several processes of the app, e.g. the main
+	 * process and a service process. All processes store events to the same database while
+	 * only one of them at a time uploads. Call in every process after initialize().
+	 * @param multiProcess
+	 * @throws IllegalStateException if SDK not initialized or uses segment file storage
+	 */
+	public static void setMultiProcess(boolean multiProcess) throws IllegalStateException {
+		synchronized(Omniata.class) {
+			assertInitialized();
+			if (multiProcess && segmentFileStorage) {
+				throw new IllegalStateException("Segment file storage supports one process only");
+			}
+			instance.eventWorker.setMultiProcess(multiProcess);
+		}
+	}
+	
+	/**
+	 * Writes the events waiting to be sent to a file, one JSON event per line, e.g. to
+	 * diagnose a backlog that doesn't drain. The events aren't removed. Does disk I/O,
+	 * call from a background thread.
+	 * @param file
+	 * @return The number of events written
+	 * @throws IOException if writing the file fails
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static int exportQueue(File file) throws IOException, IllegalStateException {
+		List<OmniataTracker> trackers;
+		synchronized(Omniata.class) {
+			assertInitialized();
+			trackers = instance.trackers;
+		}
+
+		int count = 0;
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			for (OmniataTracker tracker : trackers) {
+				count += tracker.eventLog.exportTo(writer);
+			}
+		} finally {
+			writer.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the size of the SDK database and the events stored in it. Does disk I/O,
+	 * call from a background thread.
+	 * @throws IllegalStateException if SDK not initialized
+	 */
+	public static OmniataStorageInfo getStorageInfo() throws IllegalStateException {
+		List<OmniataTracker> trackers;
+		Context context;
+		synchronized(Omniata.class) {
+			assertInitialized();
+			trackers = instance.trackers;
+			context = instance.context;
+		}
+
+		long events = 0;
+		long bytes = 0;
+		for (OmniataTracker tracker : trackers) {
+			events += tracker.eventLog.size();
+			bytes += tracker.eventLog.bytes();
+		}
+
+		// All SQLite queues share one database file
+		PersistentBlockingQueue<JSONObject> eventLog = trackers.get(0).eventLog;
+		File file = context.getDatabasePath(OmniataDBHelper.DATABASE_NAME);
+		File wal = new File(file.getPath() + "-wal");
+		return new OmniataStorageInfo(file.length() + wal.length() + OmniataSegmentStorage.directorySize(context),
+				eventLog.pragma("page_size"), eventLog.pragma("page_count"), eventLog.pragma("freelist_count"),
+				events, bytes);
+	}
+
+	/**
+	 * Returns the automatic parameters. They don't change during the lifetime of the
+	 * process so they're computed once, the returned object must not be modified.
+	 */
 	protected static JSONObject getAutomaticParameters() {
+		JSONObject properties = automaticParameters;
+		if (properties == null) {
+			properties = automaticParameters = createAutomaticParameters();
+		}
+		return properties;
+	}
+	
+	private static JSONObject createAutomaticParameters() {
 		JSONObject properties = new JSONObject();
 		Locale locale = Locale.getDefault();
 		
@@ -278,88 +779,37 @@ public class Omniata {
 		return properties;
 	}
 	
-	protected void _track(String eventType, JSONObject parameters) throws IllegalArgumentException {
-		JSONObject event;
-		
-		OmniataUtils.assertValidEventType(eventType);
-		
-		try {			
-			if (parameters != null) {
-				event = new JSONObject(parameters.toString());
-			} else {
-				event = new JSONObject();
-			}
-			
-			event.put("om_event_type", eventType);
-			event.put("api_key", apiKey);
-			event.put("uid", userID);
-			event.put("om_creation_time", System.currentTimeMillis());
-			
-			while(true) {
-				try {
-					eventBuffer.put(event);
-					break;
-				} catch (InterruptedException e) {
-				}
+	private OmniataTracker _getTracker(String name, String apiKey, String userID) {
+		for (OmniataTracker tracker : trackers) {
+			if (name.equals(tracker.getName())) {
+				return tracker;
 			}
-		} catch (JSONException e) {
-			OmniataLog.e(TAG, e.toString());
 		}
+		return addTracker(name, EVENT_LOG + "_" + name, apiKey, userID);
 	}
 	
-	protected void _channel(final int channelId, final OmniataChannelResponseHandler handler) {
-		Thread req = new Thread(new Runnable() {
-			
-			@Override
-			public void run() {
-				String uri = OmniataUtils.getChannelAPI(true) + "?api_key=" + apiKey + "&uid=" + userID + "&channel_id=" + channelId;
-				
-				try {
-					URL url = new URL(uri);
-					final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-					
-					final int httpResponse = connection.getResponseCode();
-					
-					if (httpResponse >= 200 && httpResponse < 300) {
-						try {
-							String body = OmniataUtils.convertStreamToString(connection.getInputStream());
-							JSONObject jsonObj =  new JSONObject(body);
-							JSONArray content   = jsonObj.getJSONArray("content");
-							handler.onSuccess(channelId, content);
-							Log.i("Omniata", content.toString());
-						} catch (Exception e) {
-							handler.onError(channelId, e);
-						}
-						
-					} else {
-						handler.onError(channelId, new Exception("Error: Invalid http response code: " + httpResponse));
-					}
-				} catch (final Exception e) {
-					handler.onError(channelId, e);
-				}
-				
-			}
-		});
-		
-		req.start();
-	}
-	
-	private void _setApiKey(String apiKey) {
-		this.apiKey = apiKey;
-	}
-	
-	private void _setUserId(String userId) {
-		this.userID = userId;
+	private OmniataTracker addTracker(String name, String table, String apiKey, String userID) {
+		OmniataQueueStorage storage = segmentFileStorage ? new OmniataSegmentStorage(context, table) : new OmniataSQLiteStorage(context, table);
+		OmniataTracker tracker = new OmniataTracker(name, storage, apiKey, userID, eventBuffer, eventWorker, sampler);
+		trackers.add(tracker);
+		return tracker;
 	}
 	
-	
 	private Omniata(Context context, String apiKey, String userID, String org) {
-
+		this.context 	 = context;
+		this.trackers 	 = new CopyOnWriteArrayList<OmniataTracker>();
+		this.eventBuffer = new LinkedBlockingQueue<OmniataEventLogger.Entry>();
+		this.eventLogger = new OmniataEventLogger(eventBuffer, trackers);
+		this.eventWorker = new OmniataEventWorker(context, trackers);
+		this.sampler 	 = new OmniataSampler();
+		
+		this.channelTimeouts = new OmniataTimeouts(context);
+		OmniataChannelFetcher.setTimeouts(channelTimeouts);
 	}
 	
 	
 	private void _initialize(Context context, String apiKey, String userID, String org) throws IllegalArgumentException, IllegalStateException {
-		OmniataLog.i(TAG, "Initializing Omniata with apiKey: " + apiKey + " and userID: " + userID);
+		OmniataLog.i(TAG, "Initializing Omniata with apiKey: {} and userID: {}", apiKey, userID);
 		
 		if (context == null) {
 			throw new IllegalArgumentException("Activity is null");
@@ -368,39 +818,28 @@ public class Omniata {
 		OmniataUtils.assertApiKeyValid(apiKey);
 		OmniataUtils.assertUserIdValid(userID);
 		OmniataUtils.setURL(org);
-
-		this.apiKey   	  = apiKey;
-		this.userID   	  = userID;
-		
-		if (this.context == null) {
-			this.context = context;
-		}
-		
-		if (eventBuffer == null) {
-			eventBuffer = new LinkedBlockingQueue<JSONObject>();
-		}
-		
-		if (eventLog == null) {
-			eventLog = new PersistentBlockingQueue<JSONObject>(context, EVENT_LOG, JSONObject.class);
-		}
-		
-		if (eventLogger == null) {
-			eventLogger = new OmniataEventLogger(eventBuffer, eventLog);
+		if (warmUp) {
+			OmniataWarmup.warmUp(OmniataUtils.EVENT_API, OmniataUtils.CHANNEL_API);
 		}
 		
-		if (eventWorker == null) {
-			eventWorker = new OmniataEventWorker(context, eventLog);
+		if (tracker == null) {
+			// The default tracker keeps the original table so earlier events are still sent
+			tracker = addTracker(DEFAULT_TRACKER, EVENT_LOG, apiKey, userID);
+		} else {
+			tracker.setApiKey(apiKey);
+			tracker.setUserId(userID);
 		}
 		
 		eventLogger.start();
 		eventWorker.start();
 	}
 	
-	private Context 							context;
-	private String 								apiKey;
-	private String 								userID;	
-	private BlockingQueue<JSONObject> 			eventBuffer;
-	private PersistentBlockingQueue<JSONObject> eventLog;
-	private OmniataEventLogger					eventLogger;
-	private OmniataEventWorker					eventWorker;
+	private final Context 								context;
+	private final List<OmniataTracker>					trackers;
+	private final BlockingQueue<OmniataEventLogger.Entry> eventBuffer;
+	private final OmniataEventLogger					eventLogger;
+	private final OmniataEventWorker					eventWorker;
+	private final OmniataTimeouts						channelTimeouts;
+	private final OmniataSampler						sampler;
+	private OmniataTracker								tracker;
 }
@@ -0,0 +1,275 @@
+package com.omniata.android.sdk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Accumulates high frequency events in memory and emits one rollup event per
+ * event type and group when the time window closes.
+ * 
+ * The rollup carries the group parameters, om_count, om_window_start, om_window_ms
+ * and <parameter>_sum, <parameter>_min and <parameter>_max for every numeric parameter.
+ * Other parameters are dropped.
+ */
+/* package */ class OmniataAggregator {
+	private static final String TAG = "OmniataAggregator";
+	
+	/**
+	 * Receives the rollup events
+	 */
+	interface Sink {
+		void emit(String eventType, JSONObject parameters);
+	}
+	
+	private final Sink 					sink;
+	private final Map<String, Rule> 	rules;
+	
+	public OmniataAggregator(Sink sink) {
+		this.sink  = sink;
+		this.rules = new HashMap<String, Rule>();
+	}
+	
+	/**
+	 * Starts aggregating events of the given type. Re-registering a type emits
+	 * what has been accumulated so far and applies the new window and grouping.
+	 * 
+	 * @param eventType
+	 * @param windowMS Length of the time window
+	 * @param groupBy Parameters whose values identify a group
+	 */
+	public void register(String eventType, long windowMS, String[] groupBy) {
+		Rule previous;
+		final Rule rule = new Rule(eventType, windowMS, groupBy);
+		
+		rule.timer = OmniataScheduler.get().scheduleAtFixedRate(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					emit(rule);
+				} catch (RuntimeException e) {
+					// An exception would cancel the periodic task
+					OmniataLog.e(TAG, e.toString());
+				}
+			}
+		}, windowMS, windowMS, TimeUnit.MILLISECONDS);
+		
+		synchronized(this) {
+			previous = rules.put(eventType, rule);
+		}
+		
+		if (previous != null) {
+			previous.timer.cancel(false);
+			emit(previous);
+		}
+	}
+	
+	/**
+	 * Stops aggregating events of the given type and emits what has been accumulated
+	 * @param eventType
+	 */
+	public void unregister(String eventType) {
+		Rule rule;
+		synchronized(this) {
+			rule = rules.remove(eventType);
+		}
+		if (rule != null) {
+			rule.timer.cancel(false);
+			emit(rule);
+		}
+	}
+	
+	/**
+	 * Accumulates the event if its type is aggregated
+	 * 
+	 * @return false if the event should be tracked as is
+	 */
+	public boolean add(String eventType, JSONObject parameters) {
+		// Held through rule.add so that a rule unregistered or replaced meanwhile
+		// already holds the event when it's emitted
+		synchronized(this) {
+			Rule rule = rules.get(eventType);
+			if (rule == null) {
+				return false;
+			}
+			rule.add(parameters);
+			return true;
+		}
+	}
+	
+	/**
+	 * Emits everything accumulated so far
+	 */
+	public void flush() {
+		List<Rule> all;
+		synchronized(this) {
+			all = new ArrayList<Rule>(rules.values());
+		}
+		for (Rule rule : all) {
+			emit(rule);
+		}
+	}
+	
+	private void emit(Rule rule) {
+		for (JSONObject rollup : rule.close()) {
+			sink.emit(rule.eventType, rollup);
+		}
+	}
+	
+	private static class Rule {
+		final String 	eventType;
+		final String[] 	groupBy;
+		Map<String, Group> groups;
+		long 			windowStart;
+		ScheduledFuture<?> timer;
+		
+		Rule(String eventType, long windowMS, String[] groupBy) {
+			this.eventType   = eventType;
+			this.groupBy     = groupBy != null ? groupBy : new String[0];
+			this.groups      = new LinkedHashMap<String, Group>();
+			this.windowStart = System.currentTimeMillis();
+		}
+		
+		synchronized void add(JSONObject parameters) {
+			String key = groupKey(parameters);
+			Group group = groups.get(key);
+			if (group == null) {
+				group = new Group(parameters, groupBy);
+				groups.put(key, group);
+			}
+			group.add(parameters, groupBy);
+		}
+		
+		/**
+		 * Returns the rollups of the current window and starts a new one
+		 */
+		List<JSONObject> close() {
+			Map<String, Group> closed;
+			long start, end = System.currentTimeMillis();
+			
+			synchronized(this) {
+				closed = groups;
+				start = windowStart;
+				groups = new LinkedHashMap<String, Group>();
+				windowStart = end;
+			}
+			
+			List<JSONObject> rollups = new ArrayList<JSONObject>(closed.size());
+			for (Group group : closed.values()) {
+				try {
+					rollups.add(group.toJSON(start, end - start));
+				} catch (JSONException e) {
+					OmniataLog.e(TAG, e.toString());
+				}
+			}
+			return rollups;
+		}
+		
+		private String groupKey(JSONObject parameters) {
+			if (groupBy.length == 0 || parameters == null) {
+				return "";
+			}
+			StringBuilder sb = new StringBuilder();
+			for (String param : groupBy) {
+				sb.append(parameters.opt(param)).append('\u0000');
+			}
+			return sb.toString();
+		}
+	}
+	
+	private static class Group {
+		final JSONObject 			groupValues;
+		final Map<String, double[]> stats;		// {sum, min, max}
+		long 						count;
+		
+		Group(JSONObject parameters, String[] groupBy) {
+			groupValues = new JSONObject();
+			stats 		= new LinkedHashMap<String, double[]>();
+			if (parameters != null) {
+				for (String param : groupBy) {
+					try {
+						groupValues.putOpt(param, parameters.opt(param));
+					} catch (JSONException e) {
+					}
+				}
+			}
+		}
+		
+		void add(JSONObject parameters, String[] groupBy) {
+			count++;
+			if (parameters == null) {
+				return;
+			}
+			@SuppressWarnings("unchecked")
+			Iterator<String> keys = (Iterator<String>)parameters.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				if (groupValues.has(key)) {
+					continue;
+				}
+				double value;
+				try {
+					value = toDouble(parameters.opt(key));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				double[] s = stats.get(key);
+				if (s == null) {
+					stats.put(key, new double[] {value, value, value});
+				} else {
+					s[0] += value;
+					s[1] = Math.min(s[1], value);
+					s[2] = Math.max(s[2], value);
+				}
+			}
+		}
+		
+		JSONObject toJSON(long windowStart, long windowMS) throws JSONException {
+			JSONObject json = new JSONObject();
+			@SuppressWarnings("unchecked")
+			Iterator<String> keys = (Iterator<String>)groupValues.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				json.put(key, groupValues.get(key));
+			}
+			json.put("om_count", count);
+			json.put("om_window_start", windowStart);
+			json.put("om_window_ms", windowMS);
+			for (Map.Entry<String, double[]> entry : stats.entrySet()) {
+				double[] s = entry.getValue();
+				json.put(entry.getKey() + "_sum", s[0]);
+				json.put(entry.getKey() + "_min", s[1]);
+				json.put(entry.getKey() + "_max", s[2]);
+			}
+			return json;
+		}
+		
+		/**
+		 * Numbers and numeric strings, e.g. from Unity, are aggregated. NaN and infinite
+		 * values, e.g. "1e400", are not as JSON can't represent them.
+		 */
+		private static double toDouble(Object value) throws NumberFormatException {
+			double d;
+			if (value instanceof Number) {
+				d = ((Number)value).doubleValue();
+			} else if (value instanceof String) {
+				d = Double.parseDouble((String)value);
+			} else {
+				throw new NumberFormatException();
+			}
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				throw new NumberFormatException();
+			}
+			return d;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package com.omniata.android.sdk;
+
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/* package */ class OmniataChannelFetcher {
+	private static final String TAG = "OmniataChannelFetcher";
+	
+	private static volatile boolean batchChannelSupported = true;
+	private static volatile OmniataTimeouts timeouts;
+	private static volatile boolean hedging;
+	
+	/**
+	 * Sets the timeouts of the channel requests, no timeouts are used until set
+	 * @param timeouts
+	 */
+	public static void setTimeouts(OmniataTimeouts timeouts) {
+		OmniataChannelFetcher.timeouts = timeouts;
+	}
+	
+	/**
+	 * Enables sending a second request for a channel when the first one hasn't completed
+	 * within the 95th percentile latency, the first response is used
+	 * @param hedging
+	 */
+	public static void setHedging(boolean hedging) {
+		OmniataChannelFetcher.hedging = hedging;
+	}
+	
+	/**
+	 * Fetches the content of a channel in the background
+	 */
+	public static void channel(final String apiKey, final String userID, final int channelId, final OmniataChannelResponseHandler handler) {
+		OmniataTimeouts timeouts = OmniataChannelFetcher.timeouts;
+		long hedgeDelay = hedging && timeouts != null ? timeouts.percentile(95) : -1;
+		if (hedgeDelay < 0) {
+			OmniataScheduler.io().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					fetchChannel(apiKey, userID, channelId, handler);
+				}
+			});
+			return;
+		}
+		
+		final HedgedHandler hedged = new HedgedHandler(handler);
+		final Runnable fetch = new Runnable() {
+			
+			@Override
+			public void run() {
+				fetchChannel(apiKey, userID, channelId, hedged);
+			}
+		};
+		OmniataScheduler.io().execute(fetch);
+		OmniataScheduler.get().schedule(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (hedged.addAttempt()) {
+					OmniataLog.d(TAG, "Hedging request for channel {}", channelId);
+					OmniataScheduler.io().execute(fetch);
+				}
+			}
+		}, hedgeDelay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Fetches the content of several channels in the background, with a single request
+	 * when the Channel API supports it, otherwise sequentially over one connection.
+	 */
+	public static void channels(final String apiKey, final String userID, final int[] channelIds, final OmniataChannelResponseHandler[] handlers) {
+		OmniataScheduler.io().execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (channelIds.length > 1 && batchChannelSupported && fetchChannels(apiKey, userID, channelIds, handlers)) {
+					return;
+				}
+				// The transport reads each response fully, which lets HttpURLConnection
+				// reuse the same keep-alive connection for the following request
+				for (int i = 0; i < channelIds.length; i++) {
+					fetchChannel(apiKey, userID, channelIds[i], handlers[i]);
+				}
+			}
+		});
+	}
+	
+	private static void fetchChannel(String apiKey, String userID, final int channelId, final OmniataChannelResponseHandler handler) {
+		String uri = OmniataUtils.getChannelAPI(true) + "?api_key=" + apiKey + "&uid=" + userID + "&channel_id=" + channelId;
+		
+		get(uri, new OmniataHttpResponseHandler() {
+			
+			@Override
+			public void onComplete(int httpResponse, InputStream in) {
+				if (httpResponse >= 200 && httpResponse < 300) {
+					try {
+						String body = OmniataUtils.convertStreamToString(in);
+						JSONObject jsonObj =  new JSONObject(body);
+						JSONArray content   = jsonObj.getJSONArray("content");
+						handler.onSuccess(channelId, content);
+						OmniataLog.i(TAG, "Channel {} content: {}", channelId, content);
+					} catch (Exception e) {
+						handler.onError(channelId, e);
+					}
+					
+				} else {
+					handler.onError(channelId, new Exception("Error: Invalid http response code: " + httpResponse));
+				}
+			}
+			
+			@Override
+			public void onError(Exception e) {
+				handler.onError(channelId, e);
+			}
+		});
+	}
+	
+	/**
+	 * Fetches several channels with one request. The batch response is expected to be
+	 * of form {"channels": [{"channel_id": 1, "content": [...]}, ...]}.
+	 * 
+	 * @return false if the endpoint doesn't support batch requests and the channels
+	 * should be fetched one by one, true if every handler has been called
+	 */
+	private static boolean fetchChannels(String apiKey, String userID, int[] channelIds, OmniataChannelResponseHandler[] handlers) {
+		StringBuilder uri = new StringBuilder(OmniataUtils.getChannelAPI(true));
+		uri.append("?api_key=").append(apiKey).append("&uid=").append(userID).append("&channel_ids=");
+		for (int i = 0; i < channelIds.length; i++) {
+			if (i > 0) {
+				uri.append(',');
+			}
+			uri.append(channelIds[i]);
+		}
+		
+		final JSONArray[] channels = new JSONArray[1];
+		get(uri.toString(), new OmniataHttpResponseHandler() {
+			
+			@Override
+			public void onComplete(int httpResponse, InputStream in) {
+				if (OmniataUtils.isUnsupportedEndpoint(httpResponse)) {
+					OmniataLog.i(TAG, "Batch channel request not supported: {}", httpResponse);
+					batchChannelSupported = false;
+					return;
+				}
+				if (httpResponse < 200 || httpResponse >= 300) {
+					// E.g. a bad API key, throttling or a server failure, which say nothing
+					// about batching. The channels are fetched one by one this time.
+					OmniataLog.i(TAG, "Batch channel request failed: {}", httpResponse);
+					return;
+				}
+				
+				try {
+					String body = OmniataUtils.convertStreamToString(in);
+					channels[0] = new JSONObject(body).optJSONArray("channels");
+					if (channels[0] == null) {
+						OmniataLog.i(TAG, "Batch channel request not supported");
+						batchChannelSupported = false;
+					}
+				} catch (JSONException e) {
+					OmniataLog.e(TAG, e.toString());
+				}
+			}
+			
+			@Override
+			public void onError(Exception e) {
+				OmniataLog.e(TAG, e.toString());
+			}
+		});
+		
+		if (channels[0] == null) {
+			return false;
+		}
+		
+		boolean[] handled = new boolean[channelIds.length];
+		for (int i = 0; i < channels[0].length(); i++) {
+			JSONObject channel = channels[0].optJSONObject(i);
+			if (channel == null) {
+				continue;
+			}
+			int channelId = channel.optInt("channel_id", -1);
+			for (int j = 0; j < channelIds.length; j++) {
+				if (channelIds[j] == channelId && !handled[j]) {
+					handled[j] = true;
+					JSONArray content = channel.optJSONArray("content");
+					if (content != null) {
+						handlers[j].onSuccess(channelId, content);
+					} else {
+						handlers[j].onError(channelId, new Exception("Error: No content for channel: " + channelId));
+					}
+				}
+			}
+		}
+		
+		for (int j = 0; j < channelIds.length; j++) {
+			if (!handled[j]) {
+				handlers[j].onError(channelIds[j], new Exception("Error: Channel missing from response: " + channelIds[j]));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Sends a request with the current channel timeouts and records its latency
+	 */
+	private static void get(String uri, final OmniataHttpResponseHandler handler) {
+		final OmniataTimeouts timeouts = OmniataChannelFetcher.timeouts;
+		final int timeout = timeouts != null ? timeouts.timeout() : 0;
+		final long start = System.currentTimeMillis();
+		
+		OmniataUtils.getTransport().get(uri, timeout, timeout, new OmniataHttpResponseHandler() {
+			
+			@Override
+			public void onComplete(int httpResponse, InputStream in) {
+				if (timeouts != null) {
+					timeouts.record(System.currentTimeMillis() - start);
+				}
+				handler.onComplete(httpResponse, in);
+			}
+			
+			@Override
+			public void onError(Exception e) {
+				if (timeouts != null && e instanceof SocketTimeoutException) {
+					timeouts.recordTimeout(timeout);
+				}
+				handler.onError(e);
+			}
+		});
+	}
+	
+	/**
+	 * Passes the first success of several requests for a channel to the handler. An error
+	 * is passed only once every request started has failed.
+	 */
+	private static class HedgedHandler implements OmniataChannelResponseHandler {
+		private final OmniataChannelResponseHandler handler;
+		private int 	pending = 1;
+		private boolean done;
+		
+		HedgedHandler(OmniataChannelResponseHandler handler) {
+			this.handler = handler;
+		}
+		
+		/**
+		 * @return false if the outcome is already known and no more requests are needed
+		 */
+		synchronized boolean addAttempt() {
+			if (done) {
+				return false;
+			}
+			pending++;
+			return true;
+		}
+		
+		@Override
+		public void onSuccess(int channelId, JSONArray content) {
+			synchronized(this) {
+				pending--;
+				if (done) {
+					return;
+				}
+				done = true;
+			}
+			handler.onSuccess(channelId, content);
+		}
+		
+		@Override
+		public void onError(int channelId, Exception e) {
+			synchronized(this) {
+				pending--;
+				if (done || pending > 0) {
+					return;
+				}
+				done = true;
+			}
+			handler.onError(channelId, e);
+		}
+	}
+}
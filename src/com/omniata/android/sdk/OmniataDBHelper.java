@@ -1,69 +1,404 @@
 package com.omniata.android.sdk;
 
-import android.content.ContentValues;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
+/**
+ * Opens the database shared by all SQLite queues. There's one helper per process, so
+ * the queues share one connection, each keeping its queue in a table of its own.
+ */
 /* package */ class OmniataDBHelper extends SQLiteOpenHelper {
-	private static final String DATABASE_NAME = "omniata.db";
-	private static final int DATABASE_VERSION = 1;
-	
-	private String name;
-	
-	public OmniataDBHelper(Context context, String name) {
+	/* package */ static final String DATABASE_NAME = "omniata.db";
+	private static final String STATS_TABLE = "omniata_queue_stats";
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+	private static final int DATABASE_VERSION = 2;
+	private static final int BUSY_TIMEOUT = 5000;
+
+	private static OmniataDBHelper instance;
+
+	private final Map<String, Table> tables;
+	// Held by the queues of this process while writing, and while reclaiming space so
+	// that no queue writes between checking that all queues are empty and vacuuming
+	/* package */ final Object writeLock = new Object();
+	// Storages using the database, it's closed once the last of them is closed
+	private int users;
+
+	private OmniataDBHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
-		this.name = name;
+		this.tables = new HashMap<String, Table>();
+	}
+
+	/**
+	 * @return The helper shared by all queues of the process
+	 */
+	public static synchronized OmniataDBHelper get(Context context) {
+		if (instance == null) {
+			instance = new OmniataDBHelper(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/**
+	 * @param name
+	 * @return The table of the named queue, created in the database on its first use
+	 */
+	public synchronized Table table(String name) {
+		Table table = tables.get(name);
+		if (table == null) {
+			table = new Table(name);
+			tables.put(name, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Counts a storage as using the database until it calls release()
+	 */
+	public synchronized void retain() {
+		users++;
+	}
+
+	/**
+	 * Closes the database once no storage uses it
+	 */
+	public synchronized void release() {
+		if (users > 0 && --users == 0) {
+			close();
+		}
 	}
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
-		String TABLE_CREATE = "CREATE TABLE " + name
+		// Each queue creates its table on first use, see Table.prepare()
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		// Readers and the writer don't block each other in WAL mode
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			db.enableWriteAheadLogging();
+		}
+
+		// Several processes of the app may write the database, wait for a lock
+		// instead of failing right away
+		Cursor c = db.rawQuery("PRAGMA busy_timeout = " + BUSY_TIMEOUT + ";", null);
+		c.moveToFirst();
+		c.close();
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// Each table is upgraded on its first use, see Table.prepare()
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Table table : tables.values()) {
+			table.closeStatements();
+		}
+		super.close();
+	}
+
+	private static void createSchema(SQLiteDatabase db, String name) {
+		db.beginTransaction();
+		try {
+			createTable(db, name);
+			upgradeTable(db, name);
+			createIndexes(db, name);
+			createStats(db, name);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private static void createTable(SQLiteDatabase db, String name) {
+		String TABLE_CREATE = "CREATE TABLE IF NOT EXISTS " + name
 	 						+ "(id INTEGER PRIMARY KEY AUTOINCREMENT,"
-	 						+ "data TEXT);";
-		
+	 						+ "data TEXT,"
+	 						+ "created_at INTEGER,"
+	 						+ "priority INTEGER NOT NULL DEFAULT 0,"
+	 						+ "attempts INTEGER NOT NULL DEFAULT 0,"
+	 						+ "size_bytes INTEGER NOT NULL DEFAULT 0);";
+
 		db.execSQL(TABLE_CREATE);
 	}
 
-	@Override
-	public void onUpgrade(SQLiteDatabase arg0, int arg1, int arg2) {
-		
+	private static void createIndexes(SQLiteDatabase db, String name) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + name + "_created_at ON " + name + " (created_at);");
+	}
+
+	/**
+	 * Keeps the number of rows and their total size in a table of their own, updated by
+	 * triggers, so opening the queue doesn't need to scan it
+	 */
+	private static void createStats(SQLiteDatabase db, String name) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + STATS_TABLE
+				 + "(name TEXT PRIMARY KEY,"
+				 + "count INTEGER NOT NULL,"
+				 + "bytes INTEGER NOT NULL);");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS " + name + "_insert AFTER INSERT ON " + name + " BEGIN "
+				 + "UPDATE " + STATS_TABLE + " SET count = count + 1, bytes = bytes + NEW.size_bytes WHERE name = '" + name + "'; "
+				 + "END;");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS " + name + "_delete AFTER DELETE ON " + name + " BEGIN "
+				 + "UPDATE " + STATS_TABLE + " SET count = count - 1, bytes = bytes - OLD.size_bytes WHERE name = '" + name + "'; "
+				 + "END;");
+		// Counts the existing rows once, when the table is new or migrated from version 1.
+		// Afterwards the triggers keep the row up to date. Checked first as SQLite would
+		// scan the table for an INSERT OR IGNORE ... SELECT even if the row exists.
+		Cursor c = db.rawQuery("SELECT 1 FROM " + STATS_TABLE + " WHERE name = ?;", new String[] {name});
+		boolean counted;
+		try {
+			counted = c.moveToFirst();
+		} finally {
+			c.close();
+		}
+		if (!counted) {
+			db.execSQL("INSERT INTO " + STATS_TABLE + " (name, count, bytes) "
+					 + "SELECT '" + name + "', count(id), ifnull(sum(size_bytes), 0) FROM " + name + ";");
+		}
+	}
+
+	/**
+	 * Migrates a version 1 table (id, data) to version 2. Does nothing if already migrated.
+	 */
+	private static void upgradeTable(SQLiteDatabase db, String name) {
+		Set<String> columns = new HashSet<String>();
+		Cursor c = db.rawQuery("PRAGMA table_info(" + name + ");", null);
+		try {
+			for (boolean more = c.moveToFirst(); more; more = c.moveToNext()) {
+				columns.add(c.getString(1));
+			}
+		} finally {
+			c.close();
+		}
+
+		if (columns.contains("created_at")) {
+			return;
+		}
+
+		db.execSQL("ALTER TABLE " + name + " ADD COLUMN created_at INTEGER;");
+		db.execSQL("ALTER TABLE " + name + " ADD COLUMN priority INTEGER NOT NULL DEFAULT 0;");
+		db.execSQL("ALTER TABLE " + name + " ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0;");
+		db.execSQL("ALTER TABLE " + name + " ADD COLUMN size_bytes INTEGER NOT NULL DEFAULT 0;");
+		// The creation time of old rows is only in their data, the upgrade time is close enough.
+		// length() of text counts characters, of a blob its bytes like utf8Length().
+		db.execSQL("UPDATE " + name + " SET created_at = ?, size_bytes = length(CAST(data AS BLOB));", new Object[] {System.currentTimeMillis()});
 	}
-	
+
+	/**
+	 * The table of one queue and the compiled statements of its hot operations. Used
+	 * by one thread at a time, the queue's lock.
+	 */
+	/* package */ static class Table {
+		final String 	name;
+
+		// Valid for statementDB only
+		private SQLiteDatabase  statementDB;
+		private SQLiteStatement insertStatement;
+		private SQLiteStatement deleteFirstStatement;
+		private SQLiteStatement countStatement;
+		private SQLiteStatement bytesStatement;
+
+		Table(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Creates or upgrades the table and compiles the statements, once per opening of
+		 * the database
+		 */
+		void prepare(SQLiteDatabase db) {
+			if (db != statementDB) {
+				closeStatements();
+				createSchema(db, name);
+				insertStatement 	 = db.compileStatement("INSERT INTO " + name + " (data, created_at, size_bytes) VALUES (?, ?, ?);");
+				deleteFirstStatement = db.compileStatement("DELETE FROM " + name + " WHERE id IN (SELECT id FROM " + name + " ORDER BY id LIMIT ?);");
+				countStatement 		 = db.compileStatement("SELECT count FROM " + STATS_TABLE + " WHERE name = ?;");
+				countStatement.bindString(1, name);
+				bytesStatement 		 = db.compileStatement("SELECT bytes FROM " + STATS_TABLE + " WHERE name = ?;");
+				bytesStatement.bindString(1, name);
+				statementDB 		 = db;
+			}
+		}
+
+		void closeStatements() {
+			if (statementDB != null) {
+				insertStatement.close();
+				deleteFirstStatement.close();
+				countStatement.close();
+				bytesStatement.close();
+				statementDB = null;
+			}
+		}
+
+		/**
+		 * Inserts a row. Unlike SQLiteDatabase.insert(), failures are thrown so that the
+		 * caller can retry, e.g. when another process holds the database lock.
+		 * @return The id of the row
+		 * @throws SQLiteException if the row wasn't inserted
+		 */
+		long insert(String data, long createdAt) throws SQLiteException {
+			insertStatement.bindString(1, data);
+			insertStatement.bindLong(2, createdAt);
+			insertStatement.bindLong(3, OmniataUtils.utf8Length(data));
+			long id = insertStatement.executeInsert();
+			if (id == -1) {
+				throw new SQLiteException("Inserting to " + name + " failed");
+			}
+			return id;
+		}
+
+		/**
+		 * Deletes the n first rows
+		 * @return The number of rows deleted
+		 */
+		int deleteFirst(int n) {
+			deleteFirstStatement.bindLong(1, n);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				return deleteFirstStatement.executeUpdateDelete();
+			} else {
+				deleteFirstStatement.execute();
+				return (int)longForQuery(statementDB, "SELECT changes();", 0);
+			}
+		}
+
+		/**
+		 * @return The number of rows
+		 */
+		int size() {
+			return (int)countStatement.simpleQueryForLong();
+		}
+
+		/**
+		 * @return The total size of the data in bytes
+		 */
+		long bytes() {
+			return bytesStatement.simpleQueryForLong();
+		}
+	}
+
 	public static Cursor all(SQLiteDatabase db, String name) {
-		return db.rawQuery("SELECT id, data FROM " + name + ";", null);
+		return db.rawQuery("SELECT id, data FROM " + name + " ORDER BY id;", null);
 	}
-	
+
 	public static void deleteAll(SQLiteDatabase db, String name) {
 		db.delete(name, null, null);
 	}
-	
-	public static int delete(SQLiteDatabase db, String name, int id) {
+
+	public static int delete(SQLiteDatabase db, String name, long id) {
 		String[] whereArgs = {String.valueOf(id)};
 		return db.delete(name, "id = ?", whereArgs);
 	}
-	
+
 	public static Cursor first(SQLiteDatabase db, String name) {
-		return db.rawQuery("SELECT id, data FROM " + name + " LIMIT 1;", null);
+		return db.rawQuery("SELECT id, data FROM " + name + " ORDER BY id LIMIT 1;", null);
+	}
+
+	public static Cursor first(SQLiteDatabase db, String name, int n) {
+		return db.rawQuery("SELECT id, data FROM " + name + " ORDER BY id LIMIT " + n + ";", null);
+	}
+
+	/**
+	 * Returns up to n rows following the row with the given id
+	 */
+	public static Cursor after(SQLiteDatabase db, String name, long id, int n) {
+		String[] selectionArgs = {String.valueOf(id)};
+		return db.rawQuery("SELECT id, data FROM " + name + " WHERE id > ? ORDER BY id LIMIT " + n + ";", selectionArgs);
 	}
-	
-	public static long insert(SQLiteDatabase db, String name, String data) {
-		ContentValues values = new ContentValues();
-		values.put("data", data);
-		return db.insert(name, null, values);
+
+	/**
+	 * Deletes the rows created before the given time
+	 * @return The number of rows deleted
+	 */
+	public static int deleteOlderThan(SQLiteDatabase db, String name, long time) {
+		String[] whereArgs = {String.valueOf(time)};
+		return db.delete(name, "created_at < ?", whereArgs);
+	}
+
+	/**
+	 * Counts a failed send attempt for the n first rows
+	 */
+	public static void incrementAttempts(SQLiteDatabase db, String name, int n) {
+		db.execSQL("UPDATE " + name + " SET attempts = attempts + 1 WHERE id IN (SELECT id FROM " + name + " ORDER BY id LIMIT ?);", new Object[] {n});
+	}
+
+	public static long firstId(SQLiteDatabase db, String name) {
+		return longForQuery(db, "SELECT id FROM " + name + " ORDER BY id LIMIT 1;", -1);
+	}
+
+	public static long lastId(SQLiteDatabase db, String name) {
+		return longForQuery(db, "SELECT max(id) FROM " + name + ";", 0);
+	}
+
+	private static long longForQuery(SQLiteDatabase db, String sql, long defaultValue) {
+		Cursor c = db.rawQuery(sql, null);
+		try {
+			return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : defaultValue;
+		} finally {
+			c.close();
+		}
 	}
-	
+
 	public static void resetAutoIncrement(SQLiteDatabase db, String name) {
 		String[] whereArgs = {name};
 		db.delete("sqlite_sequence", "name = ?", whereArgs);
 	}
-	
-	public static int size(SQLiteDatabase db, String name) {
-		Cursor c = db.rawQuery("SELECT count(id) FROM " + name + ";", null);
-		c.moveToFirst();
-		int sz = c.getInt(0);
-		c.close();
-		return sz;
+
+	/**
+	 * Returns the value of an integer valued pragma, e.g. page_count or freelist_count
+	 */
+	public static long pragma(SQLiteDatabase db, String pragma) {
+		return longForQuery(db, "PRAGMA " + pragma + ";", 0);
+	}
+
+	/**
+	 * Returns the free pages of the database to the file system if every queue in it is
+	 * empty, as the first reclaim rewrites the whole file, see reclaim()
+	 * @return true if the queues were empty
+	 */
+	public boolean reclaimIfEmpty(SQLiteDatabase db) {
+		synchronized(writeLock) {
+			if (longForQuery(db, "SELECT ifnull(sum(count), 0) FROM " + STATS_TABLE + ";", -1) != 0) {
+				return false;
+			}
+			reclaim(db);
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the free pages of the database to the file system. The first call switches the
+	 * database to incremental auto-vacuum, which takes a full VACUUM, so call it when the
+	 * queues are empty. Must not be called inside a transaction.
+	 */
+	public static void reclaim(SQLiteDatabase db) {
+		if (pragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+			db.execSQL("VACUUM;");
+		} else if (pragma(db, "freelist_count") > 0) {
+			Cursor c = db.rawQuery("PRAGMA incremental_vacuum;", null);
+			c.moveToFirst();
+			c.close();
+		} else {
+			return;
+		}
+
+		// The pages are written through the log, truncate it too
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			Cursor c = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE);", null);
+			c.moveToFirst();
+			c.close();
+		}
 	}
 }
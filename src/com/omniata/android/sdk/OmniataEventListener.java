@@ -0,0 +1,17 @@
+package com.omniata.android.sdk;
+
+import org.json.JSONObject;
+
+/**
+ * Receives the tracked events in the app's own process, see
+ * {@link Omniata#subscribe(OmniataEventListener, int)}
+ */
+public interface OmniataEventListener {
+	/**
+	 * Called on a background thread for each tracked event, in tracking order. The event
+	 * is a copy of the one being stored and sent, modifying it has no effect.
+	 * @param eventType
+	 * @param event The parameters of the event including om_event_type, uid and om_event_id
+	 */
+	public void onEvent(String eventType, JSONObject event);
+}
@@ -1,39 +1,108 @@
 package com.omniata.android.sdk;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import org.json.JSONObject;
 
 class OmniataEventLogger implements Runnable {
 	private static final String TAG = "OmniataEventLogger";
+	private static final int	STORAGE_RETRY_TIME 	   = 1000;
+	private static final int	MAX_STORAGE_RETRY_TIME = 60 * 1000;
 	
-	private BlockingQueue<JSONObject>			eventBuffer;
-	private PersistentBlockingQueue<JSONObject> eventLog;
+	// Put to the event buffer to stop the thread once the events before it have been stored
+	private static final Entry STOP = new Entry(null, null);
+	
+	/**
+	 * Event waiting in the event buffer to be stored by its tracker
+	 */
+	static class Entry {
+		final OmniataTracker tracker;
+		final JSONObject 	 event;
+		
+		Entry(OmniataTracker tracker, JSONObject event) {
+			this.tracker = tracker;
+			this.event   = event;
+		}
+	}
+	
+	private BlockingQueue<Entry>				eventBuffer;
+	private List<OmniataTracker>				trackers;
 	private Thread								worker;
-	private boolean								isRunning;
-	private boolean								isStarted;
+	private volatile boolean					isRunning;
 
-	public OmniataEventLogger(BlockingQueue<JSONObject> eventBuffer, PersistentBlockingQueue<JSONObject> eventLog) {
+	public OmniataEventLogger(BlockingQueue<Entry> eventBuffer, List<OmniataTracker> trackers) {
 		this.eventBuffer = eventBuffer;
-		this.eventLog	 = eventLog;
-		this.worker      = new Thread(this);
+		this.trackers	 = trackers;
+	}
+	
+	/**
+	 * Starts the thread, or restarts it after stop(). If the thread is still storing the
+	 * events buffered before stop(), it's kept running, otherwise it's waited for so that
+	 * only one thread ever takes from the buffer.
+	 */
+	public synchronized void start() {
+		if (isRunning) {
+			return;
+		}
+		isRunning = true;
+		if (worker != null) {
+			if (worker.isAlive() && eventBuffer.remove(STOP)) {
+				// STOP not taken yet, the thread carries on
+				return;
+			}
+			join(worker);
+		}
+		this.worker = new Thread(this, TAG);
+		this.worker.start();
+	}
+	
+	/**
+	 * Stops the thread once the events buffered so far have been stored and closes the event logs.
+	 * Events tracked after this stay in the buffer until the thread is started again.
+	 */
+	public synchronized void stop() {
+		if (isRunning) {
+			isRunning = false;
+			eventBuffer.add(STOP);
+		}
 	}
 	
-	public void start() {
-		if (!isStarted) {
-			this.worker.start();
-			isStarted = true;
+	/**
+	 * Waits for the thread to finish closing the event logs, keeping the caller's interrupt
+	 */
+	private static void join(Thread thread) {
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
 	@Override
 	public void run() {
 		OmniataLog.i(TAG, "Thread begin");
-		isRunning = true;
+		
+		// The event logs open their database on first use, i.e. on this thread or the event
+		// worker's thread, so that app startup isn't blocked on disk I/O. Events tracked
+		// meanwhile wait in the event buffer.
 		try {
-			while(isRunning) {
-				OmniataLog.v(TAG, "Thread running: " + Thread.currentThread().getId());
-				eventLog.add(eventBuffer.take());
+			while(true) {
+				OmniataLog.v(TAG, "Thread running: {}", Thread.currentThread().getId());
+				Entry entry = eventBuffer.take();
+				if (entry == STOP) {
+					break;
+				}
+				persist(entry);
+			}
+			for (OmniataTracker tracker : trackers) {
+				tracker.eventLog.close();
 			}
 		} catch (InterruptedException e) {
 			OmniataLog.e(TAG, "Thread interrupted");
@@ -41,4 +110,26 @@ class OmniataEventLogger implements Runnable {
 		}
 		OmniataLog.i(TAG, "Thread done");
 	}
+	
+	/**
+	 * Stores the event, waiting with backoff while the storage fails, e.g. when the database
+	 * can't be opened or the disk is full. The thread stays alive and later events keep
+	 * waiting in the buffer.
+	 */
+	private void persist(Entry entry) throws InterruptedException {
+		int retryTime = STORAGE_RETRY_TIME;
+		while (true) {
+			try {
+				if (entry.tracker.persist(entry.event)) {
+					return;
+				}
+				OmniataLog.e(TAG, "Storing event failed, retrying in {}ms", retryTime);
+			} catch (RuntimeException e) {
+				// SQLiteException and the like
+				OmniataLog.e(TAG, "Storing event failed, retrying in {}ms: {}", retryTime, e);
+			}
+			Thread.sleep(retryTime);
+			retryTime = Math.min(MAX_STORAGE_RETRY_TIME, retryTime * 2);
+		}
+	}
 }
@@ -0,0 +1,101 @@
+package com.omniata.android.sdk;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Subscription of an {@link OmniataEventListener} to the tracked events. Events wait for
+ * the listener serialized in a bounded queue and are parsed on the delivery thread. When
+ * the queue is full the event is dropped for this listener and counted, so a slow listener
+ * never holds up tracking.
+ */
+public class OmniataEventSubscription {
+	private static final String TAG = "OmniataEventSubscription";
+
+	private final OmniataEventListener	listener;
+	private final BlockingQueue<String> queue;
+	private final AtomicLong			dropped   = new AtomicLong();
+	// Set while a delivery task is scheduled or running
+	private final AtomicBoolean			draining  = new AtomicBoolean();
+	private final Runnable				drain 	 = new Runnable() {
+
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+	private volatile boolean			cancelled;
+
+	/* package */ OmniataEventSubscription(OmniataEventListener listener, int capacity) {
+		this.listener = listener;
+		this.queue 	  = new ArrayBlockingQueue<String>(capacity);
+	}
+
+	/**
+	 * @return The number of events dropped because the queue of the listener was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops delivering events to the listener, events still queued are discarded
+	 */
+	public void cancel() {
+		cancelled = true;
+		OmniataEventTap.remove(this);
+		queue.clear();
+	}
+
+	/**
+	 * Counts the event as dropped if the queue of the listener is full
+	 * @return true if the event was dropped
+	 */
+	/* package */ boolean dropIfFull() {
+		if (queue.remainingCapacity() > 0) {
+			return false;
+		}
+		dropped.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Queues the serialized event for the listener without blocking
+	 */
+	/* package */ void publish(String event) {
+		if (!queue.offer(event)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (draining.compareAndSet(false, true)) {
+			OmniataScheduler.io().execute(drain);
+		}
+	}
+
+	private void deliver() {
+		while (true) {
+			String json;
+			while (!cancelled && (json = queue.poll()) != null) {
+				try {
+					JSONObject event = new JSONObject(json);
+					listener.onEvent(event.optString("om_event_type"), event);
+				} catch (JSONException e) {
+					OmniataLog.e(TAG, e.toString());
+				} catch (RuntimeException e) {
+					OmniataLog.e(TAG, "Event listener failed", e);
+				}
+			}
+			draining.set(false);
+			// An event queued after the last poll but before the flag was cleared
+			// didn't schedule a delivery, take it unless another task already did
+			if (cancelled || queue.isEmpty() || !draining.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.omniata.android.sdk;
+
+import org.json.JSONObject;
+
+/**
+ * Passes the tracked events to the subscriptions of the process
+ */
+/* package */ class OmniataEventTap {
+	private static final OmniataEventSubscription[] NONE = new OmniataEventSubscription[0];
+
+	// Replaced on every change so publishing needs no locking or iterator
+	private static volatile OmniataEventSubscription[] subscriptions = NONE;
+
+	private OmniataEventTap() {
+	}
+
+	/* package */ static synchronized OmniataEventSubscription add(OmniataEventListener listener, int capacity) {
+		OmniataEventSubscription subscription = new OmniataEventSubscription(listener, capacity);
+		OmniataEventSubscription[] updated = new OmniataEventSubscription[subscriptions.length + 1];
+		System.arraycopy(subscriptions, 0, updated, 0, subscriptions.length);
+		updated[subscriptions.length] = subscription;
+		subscriptions = updated;
+		return subscription;
+	}
+
+	/* package */ static synchronized void remove(OmniataEventSubscription subscription) {
+		for (int i = 0; i < subscriptions.length; i++) {
+			if (subscriptions[i] == subscription) {
+				OmniataEventSubscription[] updated = new OmniataEventSubscription[subscriptions.length - 1];
+				System.arraycopy(subscriptions, 0, updated, 0, i);
+				System.arraycopy(subscriptions, i + 1, updated, i, updated.length - i);
+				subscriptions = updated.length > 0 ? updated : NONE;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Passes a finalized event to every subscription, never blocks. The event is serialized
+	 * once and each subscription parses a copy of its own on its delivery thread, the event
+	 * itself is serialized by the logger thread. Serializes nothing if there are no
+	 * subscriptions with room for the event.
+	 * @param event
+	 */
+	/* package */ static void publish(JSONObject event) {
+		OmniataEventSubscription[] current = subscriptions;
+		String json = null;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].dropIfFull()) {
+				continue;
+			}
+			if (json == null) {
+				json = event.toString();
+			}
+			current[i].publish(json);
+		}
+	}
+}
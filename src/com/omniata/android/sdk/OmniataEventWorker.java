@@ -1,94 +1,253 @@
 package com.omniata.android.sdk;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Context;
-import android.util.Log;
 
 class OmniataEventWorker implements Runnable {
 	private static final String TAG 			      	= "OmniataEventWorker";
 	private static final int    SECONDS 				= 1000;
-	private static final int    CONNECTION_TIMEOUT 		= 30 * SECONDS;
-	private static final int    READ_TIMEOUT 	   		= 30 * SECONDS;
 	private static final int	RETRY_CONNECTIVITY_TIME = 16 * SECONDS;
 	private static final int	MIN_TIME_BETWEEN_EVENTS = 1  * SECONDS;
 	private static final int    MAX_BACKOFF_EXP         = 9;				// 2^9 = 512 Seconds ~ 8 minutes
 	private static final int    MAX_RETRIES             = 30;
+	private static final int	UPLOAD_LOCK_RETRY_TIME	= 30 * SECONDS;
+	private static final int	MULTI_PROCESS_POLL_TIME = 16 * SECONDS;
+	private static final int	EXPIRY_INTERVAL			= 60 * SECONDS;
+	private static final int	STORAGE_RETRY_TIME		= 1  * SECONDS;
+	private static final int	MAX_STORAGE_RETRY_TIME	= 60 * SECONDS;
 
 	private Context 							context;
-	private int 								connectionTimeout;
-	private int 								readTimeout;
+	private final OmniataTimeouts				timeouts;
 	private boolean 							debug;	
-	private PersistentBlockingQueue<JSONObject> eventLog;
-	private int									retries;
-	private Thread								worker;
-	private boolean								isRunning;
-	private boolean								isStarted;
+	private List<OmniataTracker>				trackers;
+	private int									next;
+	private volatile int						batchSize;
+	// Cleared when the Event API turns out not to have the batch endpoint
+	private volatile boolean					batchSupported = true;
+	// Incremented whenever an event is stored, guarded by the available monitor
+	private long								availableCount;
+	private final Object						available = new Object();
+	private final OmniataUploadLock				uploadLock;
+	private volatile boolean					multiProcess;
+	private volatile long						maxEventAge;
+	// Time of the last purge of expired events, 0 forces a purge
+	private volatile long						lastExpiry;
+	private volatile Thread						worker;
+	private volatile boolean					isRunning;
+	// Held while processing events so a restarted thread can't overlap the stopping one
+	private final Object						processLock = new Object();
+	private final ResponseHandler				responseHandler = new ResponseHandler();
+	private final OmniataQueryEncoder			queryEncoder = new OmniataQueryEncoder();
 	
 	enum EventStatus {
 		SUCCESS,
 		RETRY,
-		DISCARD
+		DISCARD,
+		// The batch was rejected as a whole, its events are to be sent one by one
+		SEND_SEPARATELY
 	};
 
-	public OmniataEventWorker(Context context, PersistentBlockingQueue<JSONObject> eventLog) {
+	/**
+	 * @param context
+	 * @param trackers The trackers whose event logs are sent, in turns. The list may grow later.
+	 */
+	public OmniataEventWorker(Context context, List<OmniataTracker> trackers) {
 		this.context 		   = context;
-		this.eventLog   	   = eventLog;
-		this.connectionTimeout = CONNECTION_TIMEOUT;
-		this.readTimeout 	   = READ_TIMEOUT;
+		this.trackers   	   = trackers;
+		this.timeouts		   = new OmniataTimeouts(context);
 		this.debug 			   = false;
-		this.retries		   = 0;
-		this.worker            = new Thread(this);
+		this.batchSize		   = 1;
+		this.uploadLock		   = new OmniataUploadLock(context);
 	}
 	
-	public void start() {
-		if (!isStarted) {
+	/**
+	 * Starts the thread, or restarts it after stop()
+	 */
+	public synchronized void start() {
+		if (!isRunning) {
+			isRunning   = true;
+			this.worker = new Thread(this, TAG);
 			this.worker.start();
-			isStarted = true;
 		}
 	}
-
+	
 	/**
-	 * Returns the amount of time thread should sleep before attempting to resend.
-	 * Will back off exponentially to prevent pegging servers in case of downtime
+	 * Stops the thread. A send in progress is completed first.
 	 */
-	protected int sleepTime() {
-		// We'll cap the retry sleep time to a maximum of ~8 minutes, fixes OP-1618
-		return (1 << Math.min(MAX_BACKOFF_EXP, retries)) * SECONDS;
+	public synchronized void stop() {
+		if (isRunning) {
+			isRunning = false;
+			this.worker.interrupt();
+		}
 	}
-
+	
+	/**
+	 * Enables polling the event logs for events stored by other processes of the app
+	 * @param multiProcess
+	 */
+	public void setMultiProcess(boolean multiProcess) {
+		this.multiProcess = multiProcess;
+		onEventAvailable();
+	}
+	
+	/**
+	 * Sets the age after which events are dropped instead of sent
+	 * @param maxEventAge Age in milliseconds, 0 keeps events until sent
+	 */
+	public void setMaxEventAge(long maxEventAge) {
+		this.maxEventAge = maxEventAge;
+		this.lastExpiry  = 0;
+		wakeUp();
+	}
+	
 	/**
-	 * Causes thread to sleep based on retry count
+	 * Called when an event has been stored to one of the event logs
+	 */
+	public void onEventAvailable() {
+		synchronized(available) {
+			availableCount++;
+			available.notifyAll();
+		}
+	}
+	
+	/**
+	 * Returns the next tracker with events to send, taking turns so that one busy
+	 * tracker can't starve the others. Trackers backing off after failed sends are
+	 * skipped. Blocks while all event logs are empty or backing off.
+	 */
+	protected OmniataTracker nextTracker() throws InterruptedException {
+		while (true) {
+			long seen;
+			synchronized(available) {
+				seen = availableCount;
+			}
+			
+			long now = System.currentTimeMillis();
+			// Time until the first backing off tracker may retry, 0 if none
+			long retryWait = 0;
+			int count = trackers.size();
+			for (int i = 0; i < count; i++) {
+				OmniataTracker tracker = trackers.get((next + i) % count);
+				// Opens the event log on this thread if not open yet
+				tracker.eventLog.open();
+				if (tracker.eventLog.size() > 0) {
+					long wait = tracker.retryAt - now;
+					if (wait > 0) {
+						retryWait = retryWait == 0 ? wait : Math.min(retryWait, wait);
+						continue;
+					}
+					next = (next + i + 1) % count;
+					return tracker;
+				}
+			}
+			
+			synchronized(available) {
+				if (availableCount == seen) {
+					long timeout = retryWait;
+					if (multiProcess) {
+						// Other processes store events without notifying this one
+						timeout = timeout == 0 ? MULTI_PROCESS_POLL_TIME : Math.min(timeout, MULTI_PROCESS_POLL_TIME);
+					}
+					if (retryWait > 0) {
+						OmniataLog.i(TAG, "Retrying in {}ms", retryWait);
+					} else {
+						OmniataLog.d(TAG, "Queues empty");
+					}
+					available.wait(timeout);
+				}
+			}
+			if (multiProcess) {
+				refreshEventLogs();
+			}
+		}
+	}
+	
+	/**
+	 * Re-reads the sizes of the event logs, which other processes may have changed
+	 */
+	private void refreshEventLogs() {
+		for (OmniataTracker tracker : trackers) {
+			tracker.eventLog.refresh();
+		}
+	}
+	
+	/**
+	 * Cuts short the retry waits of all trackers and a connectivity wait, e.g. when a flush
+	 * is requested
+	 */
+	public void wakeUp() {
+		for (OmniataTracker tracker : trackers) {
+			tracker.retryAt = 0;
+		}
+		onEventAvailable();
+		synchronized(this) {
+			notifyAll();
+		}
+	}
 
+	/**
+	 * Returns the amount of time a tracker should wait before attempting to resend.
+	 * Will back off exponentially to prevent pegging servers in case of downtime
 	 */
-	protected void throttle() throws InterruptedException {
-		int timeSleepMS = sleepTime();
-		sleep(timeSleepMS);
+	protected static int sleepTime(int retries) {
+		// We'll cap the retry sleep time to a maximum of ~8 minutes, fixes OP-1618
+		return (1 << Math.min(MAX_BACKOFF_EXP, retries)) * SECONDS;
 	}
 
 	protected void sleep(int timeMS) throws InterruptedException {
-		OmniataLog.i(TAG, "Retrying in " + timeMS + "ms");
-		Thread.sleep(timeMS);
+		OmniataLog.i(TAG, "Retrying in {}ms", timeMS);
+		synchronized(this) {
+			wait(timeMS);
+		}
 	}
 
 	@Override
 	public void run() {
 		OmniataLog.i(TAG, "Thread begin");
-		isRunning = true;
+		boolean isUploader = false;
+		int storageRetryTime = STORAGE_RETRY_TIME;
 		try {
-			while(isRunning) {
-				OmniataLog.v(TAG, "Thread running: " + Thread.currentThread().getId());
+			// A thread replaced by start() while finishing a send stops too
+			while(isRunning && worker == Thread.currentThread() && !Thread.currentThread().isInterrupted()) {
+				OmniataLog.v(TAG, "Thread running: {}", Thread.currentThread().getId());
+				
+				// Only one process of the app uploads, the others just store events
+				if (!uploadLock.tryAcquire()) {
+					OmniataLog.v(TAG, "Another process is uploading");
+					isUploader = false;
+					sleep(UPLOAD_LOCK_RETRY_TIME);
+					continue;
+				}
+				if (!isUploader) {
+					// The previous uploader may have sent events this process counted
+					isUploader = true;
+					refreshEventLogs();
+					lastExpiry = 0;
+				}
+				
 				// Check for network connectivity prior to processing events
 				if (OmniataUtils.isConnected(context)) {
 					OmniataLog.v(TAG, "Connection available");
-					processEvents();
+					try {
+						synchronized(processLock) {
+							processEvents();
+						}
+						storageRetryTime = STORAGE_RETRY_TIME;
+					} catch (RuntimeException e) {
+						// SQLiteException and the like, e.g. the database can't be opened
+						OmniataLog.e(TAG, "Reading events failed", e);
+						sleep(storageRetryTime);
+						storageRetryTime = Math.min(MAX_STORAGE_RETRY_TIME, storageRetryTime * 2);
+					}
 				} else {
 					OmniataLog.v(TAG, "Connection unavailable");
 					sleep(RETRY_CONNECTIVITY_TIME);
@@ -96,14 +255,59 @@ class OmniataEventWorker implements Runnable {
 			}
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
+		} finally {
+			uploadLock.release();
 		}
 		OmniataLog.i(TAG, "Thread done");
 	}
 
+	/**
+	 * Drops the events older than the maximum event age from all event logs. Runs at most
+	 * once per EXPIRY_INTERVAL unless forced by resetting lastExpiry.
+	 */
+	protected void expireEvents() {
+		long maxAge = maxEventAge;
+		long now = System.currentTimeMillis();
+		if (maxAge <= 0 || now - lastExpiry < EXPIRY_INTERVAL) {
+			return;
+		}
+		lastExpiry = now;
+		
+		for (OmniataTracker tracker : trackers) {
+			int expired = tracker.eventLog.removeOlderThan(now - maxAge);
+			if (expired > 0) {
+				OmniataLog.i(TAG, "Dropped {} expired events", expired);
+				OmniataStats.add(OmniataStats.Counter.EVENTS_EXPIRED, expired);
+				tracker.unbatchedRows = Math.max(0, tracker.unbatchedRows - expired);
+				tracker.flushTracker.onSent();
+			}
+		}
+	}
+
 	protected void processEvents() throws InterruptedException {
+		// Old events are dropped in bulk before sending any of them
+		expireEvents();
+		
 		long now = System.currentTimeMillis();
 		
-		JSONObject event = eventLog.blockingPeek();
+		OmniataTracker tracker = nextTracker();
+		PersistentBlockingQueue<JSONObject> eventLog = tracker.eventLog;
+		int max = batchSize > 1 && batchSupported && tracker.unbatchedRows == 0 ? batchSize : 1;
+		List<JSONObject> events = new ArrayList<JSONObject>(max);
+		// Rows that can't be parsed are counted but not returned
+		int rows = eventLog.peek(max, events);
+		if (events.isEmpty()) {
+			if (rows > 0) {
+				// Unreadable rows would otherwise stay at the head for good
+				OmniataLog.w(TAG, "Dropped {} unreadable events", rows);
+				OmniataStats.add(OmniataStats.Counter.EVENTS_DISCARDED, rows);
+				removeSent(tracker, rows);
+			} else {
+				// The size was out of date, e.g. another process emptied the queue
+				eventLog.refresh();
+			}
+			return;
+		}
 		
 		// Events are stored on the servers on one second precision. Waiting here
 		// assures each event has a different timestamp. Different timestamp is needed
@@ -112,24 +316,74 @@ class OmniataEventWorker implements Runnable {
 		if (timeToWait > 0) {
 			Thread.sleep(timeToWait);
 		}
+		
+		long[] creationTimes = new long[events.size()];
+		for (int i = 0; i < creationTimes.length; i++) {
+			creationTimes[i] = events.get(i).optLong("om_creation_time", -1);
+		}
 
-		switch(sendEvent(event)) {
+		EventStatus status = events.size() > 1 ? sendBatch(events) : sendEvent(events.get(0));
+		
+		switch(status) {
 		case RETRY:
-			retries++;
-			if (retries < MAX_RETRIES) {
-				throttle();
+			tracker.retries++;
+			OmniataStats.increment(OmniataStats.Counter.SEND_RETRIES);
+			if (tracker.retries < MAX_RETRIES) {
+				eventLog.incrementAttempts(rows);
+				// Only this tracker waits, the others keep sending
+				tracker.retryAt = System.currentTimeMillis() + sleepTime(tracker.retries);
 				break;
 			} else {
 				// Fall through
 			}
 			
-		case SUCCESS:
 		case DISCARD:
-			retries = 0;
-			eventLog.take();
+			OmniataStats.add(OmniataStats.Counter.EVENTS_DISCARDED, events.size());
+			tracker.retries = 0;
+			removeSent(tracker, rows);
+			break;
+			
+		case SUCCESS:
+			OmniataStats.add(OmniataStats.Counter.EVENTS_SENT, events.size());
+			for (long creationTime : creationTimes) {
+				if (creationTime != -1) {
+					OmniataStats.record(OmniataStats.Histogram.ENQUEUE_TO_SEND_MS, System.currentTimeMillis() - creationTime);
+				}
+			}
+			tracker.retries = 0;
+			removeSent(tracker, rows);
+			break;
+			
+		case SEND_SEPARATELY:
+			// The same rows are sent one by one next, each getting its own response
+			tracker.unbatchedRows = rows;
 			break;
 		}
 	}
+	
+	/**
+	 * Removes the rows whose sending has completed from the head of the tracker's queue
+	 */
+	private void removeSent(OmniataTracker tracker, int rows) {
+		tracker.eventLog.removeFirst(rows);
+		tracker.unbatchedRows = Math.max(0, tracker.unbatchedRows - rows);
+		tracker.flushTracker.onSent();
+	}
+	
+	/**
+	 * Replaces om_creation_time of the event with om_delta, the age of the event in seconds
+	 * @param event
+	 */
+	protected static void stampDelta(JSONObject event) {
+		try {
+			long creationTime = event.getLong("om_creation_time");
+			long omDelta = (System.currentTimeMillis() - creationTime) / 1000;
+			event.put("om_delta", omDelta);
+			event.remove("om_creation_time");
+		} catch (JSONException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+	}
 
 	/**
 	 * Attempts to send an event
@@ -137,82 +391,163 @@ class OmniataEventWorker implements Runnable {
 	 * @return false if retry should be attempted
 	 */	
 	protected EventStatus sendEvent(JSONObject event) {
-		HttpURLConnection connection = null;
-
+		stampDelta(event);
+		
+		String eventURL = queryEncoder.url(OmniataUtils.getEventAPI(true, debug), event);
+		
+		OmniataLog.i(TAG, "Calling event endpoint: {}", eventURL);
+		
+		int timeout = timeouts.timeout();
+		long sendStart = System.currentTimeMillis();
+		responseHandler.reset();
+		OmniataUtils.getTransport().get(eventURL, timeout, timeout, responseHandler);
+		
+		if (responseHandler.responseCode != -1) {
+			recordLatency(System.currentTimeMillis() - sendStart);
+			OmniataStats.add(OmniataStats.Counter.BYTES_SENT, eventURL.length());
+		} else if (responseHandler.timedOut) {
+			timeouts.recordTimeout(timeout);
+		}
+		return responseHandler.status;
+	}
+	
+	/**
+	 * Attempts to send several events in one batch envelope. A batch is never discarded as
+	 * a whole, if the server rejects it the events are sent one by one instead.
+	 * @param events
+	 * @return RETRY if retry should be attempted, SEND_SEPARATELY if the batch was rejected
+	 */
+	protected EventStatus sendBatch(List<JSONObject> events) {
+		for (JSONObject event : events) {
+			stampDelta(event);
+		}
+		
+		String eventURL = OmniataUtils.getEventBatchAPI(true, debug);
+		byte[] body;
 		try {
-			// om_delta
-			try {
-				long creationTime = event.getLong("om_creation_time");
-				long omDelta = (System.currentTimeMillis() - creationTime) / 1000;
-				event.put("om_delta", omDelta);
-				event.remove("om_creation_time");
-			} catch (JSONException e) {
-				OmniataLog.e(TAG, e.toString());
-			}
-			
-			String query    = OmniataUtils.jsonToQueryString(event);
-			String eventURL = OmniataUtils.getEventAPI(true, debug) + "?" + query;
-			
-			OmniataLog.i(TAG, "Calling event endpoint: " + eventURL);
-			Log.i(TAG,"Calling event endpoint: " + eventURL);
-			URL url = new URL(eventURL);
-
-			connection = (HttpURLConnection)url.openConnection();
-
-			connection.setConnectTimeout(connectionTimeout);
-			connection.setReadTimeout(readTimeout);
-
-			InputStream is = connection.getInputStream();
-			int httpResponseCode 	   = connection.getResponseCode();
-			String httpResponseMessage = connection.getResponseMessage();
-
-			OmniataLog.d(TAG, "" + httpResponseCode + ": " + httpResponseMessage);
-
-			// Read & ignore the response. It's a good practise to read, from the server's 
-			// point of view it's cleaner when the client reads the response before
-			// closing the connection.s
-			@SuppressWarnings("unused")
-			int bytesRead = -1;
-			byte[] buffer = new byte[64];
-			while ((bytesRead = is.read(buffer)) >= 0) {}
-
-			// 5xx Server Error
-			if (httpResponseCode >= 500) { 
-				/* Will retry */
-				return EventStatus.RETRY;
-			} 
-			// 4xx Client Error
-			else if (httpResponseCode >= 400) {
-				return EventStatus.DISCARD;
-			} 
-			// 3xx Redirection
-			else if (httpResponseCode >= 300) {
-				if (httpResponseCode == 304) {
-					return EventStatus.SUCCESS;
-				} else {
-					return EventStatus.DISCARD;
-				}
-			} 
-			// 2xx Success
-			else if (httpResponseCode >= 200) {
+			body = OmniataUtils.batchEnvelope(events).toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			OmniataLog.e(TAG, e.toString());
+			return EventStatus.SEND_SEPARATELY;
+		}
+		
+		OmniataLog.i(TAG, "Calling batch event endpoint: {} with {} events", eventURL, events.size());
+		
+		int timeout = timeouts.timeout();
+		long sendStart = System.currentTimeMillis();
+		responseHandler.reset();
+		OmniataUtils.getTransport().post(eventURL, "application/json", body, timeout, timeout, responseHandler);
+		
+		if (responseHandler.responseCode != -1) {
+			recordLatency(System.currentTimeMillis() - sendStart);
+			OmniataStats.add(OmniataStats.Counter.BYTES_SENT, eventURL.length() + body.length);
+		} else if (responseHandler.timedOut) {
+			timeouts.recordTimeout(timeout);
+		}
+		
+		if (OmniataUtils.isUnsupportedEndpoint(responseHandler.responseCode)) {
+			OmniataLog.i(TAG, "Batch upload not supported: {}", responseHandler.responseCode);
+			batchSupported = false;
+			return EventStatus.SEND_SEPARATELY;
+		}
+		if (responseHandler.status == EventStatus.DISCARD) {
+			// The server may reject the envelope while accepting the events themselves
+			return EventStatus.SEND_SEPARATELY;
+		}
+		return responseHandler.status;
+	}
+	
+	private void recordLatency(long latencyMS) {
+		OmniataStats.record(OmniataStats.Histogram.SEND_RTT_MS, latencyMS);
+		timeouts.record(latencyMS);
+	}
+	
+	/**
+	 * Sets the bounds of the connect and read timeouts, which are derived from the
+	 * latencies observed on the current type of network
+	 * @param minMS
+	 * @param maxMS
+	 */
+	public void setTimeoutBounds(int minMS, int maxMS) {
+		timeouts.setBounds(minMS, maxMS);
+	}
+	
+	/**
+	 * Sets the maximum number of events sent in one request, 1 sends each event separately
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+	
+	/**
+	 * Maps the http response code of the Event API to event status
+	 */
+	protected static EventStatus statusForResponseCode(int httpResponseCode) {
+		// 5xx Server Error
+		if (httpResponseCode >= 500) { 
+			/* Will retry */
+			return EventStatus.RETRY;
+		} 
+		// 4xx Client Error
+		else if (httpResponseCode >= 400) {
+			return EventStatus.DISCARD;
+		} 
+		// 3xx Redirection
+		else if (httpResponseCode >= 300) {
+			if (httpResponseCode == 304) {
 				return EventStatus.SUCCESS;
-			} 
-			// 1xx Informational
-			else {
+			} else {
 				return EventStatus.DISCARD;
-			}		
-		} catch (MalformedURLException e) {
-			OmniataLog.e(TAG, e.toString());
+			}
+		} 
+		// 2xx Success
+		else if (httpResponseCode >= 200) {
+			return EventStatus.SUCCESS;
+		} 
+		// 1xx Informational
+		else {
 			return EventStatus.DISCARD;
-		} catch (IOException e) {
-			OmniataLog.e(TAG, e.toString());
-			return EventStatus.RETRY;
-		} catch (SecurityException e) {
+		}
+	}
+	
+	/**
+	 * Stores the outcome of the latest send. The worker sends one event
+	 * at a time so a single instance is reused.
+	 */
+	private static class ResponseHandler implements OmniataHttpResponseHandler {
+		EventStatus status;
+		int 		responseCode;
+		boolean 	timedOut;
+		
+		/**
+		 * Forgets the outcome of the previous request. A transport that returns without
+		 * calling back leaves the request to be retried.
+		 */
+		void reset() {
+			this.status 	  = EventStatus.RETRY;
+			this.responseCode = -1;
+			this.timedOut 	  = false;
+		}
+		
+		@Override
+		public void onComplete(int responseCode, InputStream in) {
+			OmniataLog.d(TAG, "Response code: {}", responseCode);
+			this.responseCode = responseCode;
+			this.timedOut 	  = false;
+			this.status 	  = statusForResponseCode(responseCode);
+		}
+		
+		@Override
+		public void onError(Exception e) {
 			OmniataLog.e(TAG, e.toString());
-			return EventStatus.RETRY;
-		} finally {
-			if (connection != null) {
-				connection.disconnect();
+			this.responseCode = -1;
+			this.timedOut 	  = e instanceof SocketTimeoutException;
+			if (e instanceof MalformedURLException) {
+				this.status = EventStatus.DISCARD;
+			} else {
+				// IOException, SecurityException
+				this.status = EventStatus.RETRY;
 			}
 		}
 	}
@@ -0,0 +1,172 @@
+package com.omniata.android.sdk;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Tracks the progress of events from the event buffer through the event log to the
+ * server, so that flush requests can be completed once everything tracked before
+ * them has been sent.
+ */
+/* package */ class OmniataFlushTracker {
+	private static final String TAG = "OmniataFlushTracker";
+	
+	private final PersistentBlockingQueue<JSONObject> 	eventLog;
+	private final AtomicLong 							tracked;
+	private final AtomicLong 							persisted;
+	private final List<Flush> 							pending;
+	
+	public OmniataFlushTracker(PersistentBlockingQueue<JSONObject> eventLog) {
+		this.eventLog  = eventLog;
+		this.tracked   = new AtomicLong();
+		this.persisted = new AtomicLong();
+		this.pending   = new CopyOnWriteArrayList<Flush>();
+	}
+	
+	/**
+	 * Called when an event has been put to the event buffer
+	 */
+	public void onTracked() {
+		tracked.incrementAndGet();
+	}
+	
+	/**
+	 * Called when an event has been taken from the event buffer and stored in the event log
+	 */
+	public void onPersisted() {
+		persisted.incrementAndGet();
+		if (!pending.isEmpty()) {
+			check();
+		}
+	}
+	
+	/**
+	 * Called when events have been removed from the event log
+	 */
+	public void onSent() {
+		if (!pending.isEmpty()) {
+			check();
+		}
+	}
+	
+	/**
+	 * @param timeoutMS
+	 * @return Future completing with true once all events tracked so far have been sent,
+	 * or with false if that doesn't happen within the timeout
+	 */
+	public Future<Boolean> flush(long timeoutMS) {
+		final Flush flush = new Flush(tracked.get());
+		pending.add(flush);
+		
+		// Checking may open the database, so it's done off the caller's thread and off the
+		// scheduler thread, which runs short tasks such as closing aggregation windows
+		OmniataScheduler.io().execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				check();
+			}
+		});
+		OmniataScheduler.get().schedule(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (flush.complete(false)) {
+					OmniataLog.i(TAG, "Flush timed out");
+				}
+				pending.remove(flush);
+			}
+		}, timeoutMS, TimeUnit.MILLISECONDS);
+		
+		return flush;
+	}
+	
+	private synchronized void check() {
+		for (Flush flush : pending) {
+			// Once the logger has persisted everything tracked before the flush, the flush
+			// is done when the worker has sent every row up to the current last row
+			if (flush.lastId < 0 && persisted.get() >= flush.target) {
+				flush.lastId = eventLog.lastId();
+			}
+			if (flush.lastId >= 0) {
+				long headId = eventLog.headId();
+				if (headId < 0 || headId > flush.lastId) {
+					flush.complete(true);
+					pending.remove(flush);
+				}
+			}
+		}
+	}
+	
+	private static class Flush implements Future<Boolean> {
+		final long 				target;
+		long 					lastId;
+		final CountDownLatch 	done;
+		volatile Boolean 		result;
+		volatile boolean 		cancelled;
+		
+		Flush(long target) {
+			this.target = target;
+			this.lastId = -1;
+			this.done   = new CountDownLatch(1);
+		}
+		
+		synchronized boolean complete(boolean flushed) {
+			if (result != null) {
+				return false;
+			}
+			result = flushed;
+			done.countDown();
+			return true;
+		}
+		
+		@Override
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			if (result != null) {
+				return false;
+			}
+			cancelled = true;
+			return complete(false);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return result != null;
+		}
+
+		@Override
+		public Boolean get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		@Override
+		public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return result();
+		}
+		
+		private Boolean result() throws CancellationException {
+			if (cancelled) {
+				throw new CancellationException();
+			}
+			return result;
+		}
+	}
+}
@@ -2,7 +2,18 @@ package com.omniata.android.sdk;
 
 import java.io.InputStream;
 
-/* package */ interface OmniataHttpResponseHandler {
-	/* package */ void onComplete(int responseCode, InputStream in);
-	/* package */ void onError(Exception e);
+public interface OmniataHttpResponseHandler {
+	/**
+	 * Called when a response has been received. The stream holds the response body
+	 * and is closed by the transport once this method returns.
+	 * @param responseCode
+	 * @param in
+	 */
+	public void onComplete(int responseCode, InputStream in);
+	
+	/**
+	 * Called when no response could be received
+	 * @param e
+	 */
+	public void onError(Exception e);
 }
@@ -0,0 +1,108 @@
+package com.omniata.android.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/* package */ class OmniataHttpTransport implements OmniataTransport {
+	private static final String TAG = "OmniataHttpTransport";
+
+	@Override
+	public void get(String url, int connectTimeout, int readTimeout, OmniataHttpResponseHandler handler) {
+		request(url, null, null, connectTimeout, readTimeout, handler);
+	}
+	
+	@Override
+	public void post(String url, String contentType, byte[] body, int connectTimeout, int readTimeout, OmniataHttpResponseHandler handler) {
+		request(url, contentType, body, connectTimeout, readTimeout, handler);
+	}
+	
+	private void request(String url, String contentType, byte[] body, int connectTimeout, int readTimeout, OmniataHttpResponseHandler handler) {
+		HttpURLConnection connection = null;
+		InputStream in = null;
+		int responseCode;
+		
+		try {
+			connection = (HttpURLConnection)new URL(url).openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			
+			if (body != null) {
+				connection.setDoOutput(true);
+				connection.setRequestMethod("POST");
+				connection.setRequestProperty("Content-Type", contentType);
+				connection.setFixedLengthStreamingMode(body.length);
+				OutputStream out = connection.getOutputStream();
+				out.write(body);
+				out.close();
+			}
+			
+			responseCode = connection.getResponseCode();
+			// Error responses have their body in the error stream
+			in = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		} catch (Exception e) {
+			if (connection != null) {
+				connection.disconnect();
+			}
+			handler.onError(e);
+			return;
+		}
+		
+		if (in == null) {
+			in = new ByteArrayInputStream(new byte[0]);
+		}
+		
+		try {
+			handler.onComplete(responseCode, in);
+		} finally {
+			close(in);
+		}
+	}
+	
+	/**
+	 * Opens a connection to the server of the URL with a HEAD request and returns it to
+	 * the keep-alive pool, so the next request to the server skips the TCP and TLS handshakes
+	 * @param url
+	 * @param timeout Connect and read timeout in milliseconds
+	 * @return true if the server responded
+	 */
+	/* package */ boolean preconnect(String url, int timeout) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection)new URL(url).openConnection();
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			connection.setRequestMethod("HEAD");
+			
+			int responseCode = connection.getResponseCode();
+			InputStream in = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			if (in != null) {
+				close(in);
+			}
+			return true;
+		} catch (Exception e) {
+			OmniataLog.d(TAG, e.toString());
+			if (connection != null) {
+				connection.disconnect();
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Reads the rest of the response before closing. From the server's point of view
+	 * it's cleaner, and it allows the connection to be reused for the next request.
+	 */
+	private static void close(InputStream in) {
+		try {
+			byte[] buffer = new byte[64];
+			while (in.read(buffer) >= 0) {}
+			in.close();
+		} catch (IOException e) {
+			OmniataLog.d(TAG, e.toString());
+		}
+	}
+}
@@ -2,8 +2,18 @@ package com.omniata.android.sdk;
 
 import android.util.Log;
 
+/**
+ * Logging facade of the SDK.
+ *
+ * The parameterized methods take a message with {} placeholders that is formatted only
+ * when the priority is enabled, so disabled log calls don't build strings. Messages can
+ * also be kept in a fixed size in-memory trace ring and dumped on demand.
+ */
 /* package */ class OmniataLog {
-	private static int priority = Log.ASSERT;
+	private static volatile int priority = Log.ASSERT;
+	private static volatile int tracePriority = Integer.MAX_VALUE;
+	private static volatile TraceRing trace;
+
 	public static void setPriority(int priority) {OmniataLog.priority = priority;}
 	public static int wtf(String tag, String msg) {return log(Log.ASSERT, tag, msg, null);}
 	public static int e(String tag, String msg) {return log(Log.ERROR, tag, msg, null);}
@@ -17,18 +27,90 @@ import android.util.Log;
 	public static int i(String tag, String msg, Throwable t) {return log(Log.INFO, tag, msg, t);}
 	public static int d(String tag, String msg, Throwable t) {return log(Log.DEBUG, tag, msg, t);}
 	public static int v(String tag, String msg, Throwable t) {return log(Log.VERBOSE, tag, msg, t);}
-	private static int log(int priority, String tag, String msg, Throwable t) { 
-		if (priority >= OmniataLog.priority) {
-			if (t == null) {
-				return Log.println(priority, tag, msg);
-			} else {
-				return Log.println(priority, tag, msg + "\n" + join(t.getStackTrace()));
+	public static int e(String tag, String format, Object arg) {return isLoggable(Log.ERROR) ? log(Log.ERROR, tag, format(format, arg, null), null) : 0;}
+	public static int w(String tag, String format, Object arg) {return isLoggable(Log.WARN) ? log(Log.WARN, tag, format(format, arg, null), null) : 0;}
+	public static int i(String tag, String format, Object arg) {return isLoggable(Log.INFO) ? log(Log.INFO, tag, format(format, arg, null), null) : 0;}
+	public static int d(String tag, String format, Object arg) {return isLoggable(Log.DEBUG) ? log(Log.DEBUG, tag, format(format, arg, null), null) : 0;}
+	public static int v(String tag, String format, Object arg) {return isLoggable(Log.VERBOSE) ? log(Log.VERBOSE, tag, format(format, arg, null), null) : 0;}
+	public static int e(String tag, String format, Object arg1, Object arg2) {return isLoggable(Log.ERROR) ? log(Log.ERROR, tag, format(format, arg1, arg2), null) : 0;}
+	public static int w(String tag, String format, Object arg1, Object arg2) {return isLoggable(Log.WARN) ? log(Log.WARN, tag, format(format, arg1, arg2), null) : 0;}
+	public static int i(String tag, String format, Object arg1, Object arg2) {return isLoggable(Log.INFO) ? log(Log.INFO, tag, format(format, arg1, arg2), null) : 0;}
+	public static int d(String tag, String format, Object arg1, Object arg2) {return isLoggable(Log.DEBUG) ? log(Log.DEBUG, tag, format(format, arg1, arg2), null) : 0;}
+	public static int v(String tag, String format, Object arg1, Object arg2) {return isLoggable(Log.VERBOSE) ? log(Log.VERBOSE, tag, format(format, arg1, arg2), null) : 0;}
+	// Primitive overloads, the argument is boxed only when the priority is enabled
+	public static int e(String tag, String format, long arg) {return isLoggable(Log.ERROR) ? log(Log.ERROR, tag, format(format, Long.valueOf(arg), null), null) : 0;}
+	public static int w(String tag, String format, long arg) {return isLoggable(Log.WARN) ? log(Log.WARN, tag, format(format, Long.valueOf(arg), null), null) : 0;}
+	public static int i(String tag, String format, long arg) {return isLoggable(Log.INFO) ? log(Log.INFO, tag, format(format, Long.valueOf(arg), null), null) : 0;}
+	public static int d(String tag, String format, long arg) {return isLoggable(Log.DEBUG) ? log(Log.DEBUG, tag, format(format, Long.valueOf(arg), null), null) : 0;}
+	public static int v(String tag, String format, long arg) {return isLoggable(Log.VERBOSE) ? log(Log.VERBOSE, tag, format(format, Long.valueOf(arg), null), null) : 0;}
+
+	/**
+	 * @return true if messages of the given priority go to logcat or the trace ring
+	 */
+	public static boolean isLoggable(int priority) {
+		return priority >= OmniataLog.priority || priority >= OmniataLog.tracePriority;
+	}
+
+	/**
+	 * Keeps the latest messages of at least the given priority in memory, independent of the
+	 * logcat priority. Replaces any previous trace.
+	 * @param capacity Number of messages kept, 0 disables the trace
+	 * @param priority
+	 */
+	public static void setTrace(int capacity, int priority) {
+		if (capacity > 0) {
+			trace = new TraceRing(capacity);
+			tracePriority = priority;
+		} else {
+			tracePriority = Integer.MAX_VALUE;
+			trace = null;
+		}
+	}
+
+	/**
+	 * @return The messages in the trace ring, oldest first, one per line
+	 */
+	public static String dumpTrace() {
+		TraceRing t = trace;
+		return t != null ? t.dump() : "";
+	}
+
+	private static int log(int priority, String tag, String msg, Throwable t) {
+		if (t != null && isLoggable(priority)) {
+			msg = msg + "\n" + join(t.getStackTrace());
+		}
+		if (priority >= OmniataLog.tracePriority) {
+			TraceRing ring = trace;
+			if (ring != null) {
+				ring.add(priority, tag, msg);
 			}
+		}
+		if (priority >= OmniataLog.priority) {
+			return Log.println(priority, tag, msg);
 		} else {
 			return 0;
 		}
 	}
-	
+
+	/**
+	 * Replaces the {} placeholders of the format with the arguments
+	 */
+	private static String format(String format, Object arg1, Object arg2) {
+		int first = format.indexOf("{}");
+		if (first < 0) {
+			return format;
+		}
+		StringBuilder sb = new StringBuilder(format.length() + 32);
+		sb.append(format, 0, first).append(arg1);
+		int second = format.indexOf("{}", first + 2);
+		if (second < 0) {
+			sb.append(format, first + 2, format.length());
+		} else {
+			sb.append(format, first + 2, second).append(arg2).append(format, second + 2, format.length());
+		}
+		return sb.toString();
+	}
+
 	private static <E> String join(E[] e){
 		StringBuilder sb = new StringBuilder();
 		for(E i : e) {
@@ -36,4 +118,45 @@ import android.util.Log;
 		}
 		return sb.toString();
 	}
+
+	private static class TraceRing {
+		private final long[]   times;
+		private final int[]    priorities;
+		private final String[] tags;
+		private final String[] messages;
+		private int            next;
+		private boolean        full;
+
+		TraceRing(int capacity) {
+			times 	   = new long[capacity];
+			priorities = new int[capacity];
+			tags 	   = new String[capacity];
+			messages   = new String[capacity];
+		}
+
+		synchronized void add(int priority, String tag, String msg) {
+			times[next]      = System.currentTimeMillis();
+			priorities[next] = priority;
+			tags[next]       = tag;
+			messages[next]   = msg;
+			if (++next == times.length) {
+				next = 0;
+				full = true;
+			}
+		}
+
+		synchronized String dump() {
+			StringBuilder sb = new StringBuilder();
+			int count = full ? times.length : next;
+			int start = full ? next : 0;
+			for (int i = 0; i < count; i++) {
+				int j = (start + i) % times.length;
+				sb.append(times[j]).append(' ')
+				  .append("VDIWEA".charAt(Math.max(0, Math.min(5, priorities[j] - Log.VERBOSE)))).append('/')
+				  .append(tags[j]).append(": ")
+				  .append(messages[j]).append('\n');
+			}
+			return sb.toString();
+		}
+	}
 }
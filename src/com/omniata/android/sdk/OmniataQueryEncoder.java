@@ -0,0 +1,147 @@
+package com.omniata.android.sdk;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Encodes events as URL query strings the same way as URLEncoder with UTF-8, but writes
+ * into a reused buffer. Not thread safe, each sending thread keeps its own instance.
+ */
+/* package */ class OmniataQueryEncoder {
+	private static final char[]    HEX 			  = "0123456789ABCDEF".toCharArray();
+	private static final boolean[] UNRESERVED 	  = new boolean[128];
+	private static final String[]  FIXED_KEYS 	  = {"api_key", "uid", "om_event_type", "om_delta"};
+	private static final int 	   MAX_CACHED_KEYS = 128;
+
+	static {
+		for (char c = 'a'; c <= 'z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = 'A'; c <= 'Z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			UNRESERVED[c] = true;
+		}
+		UNRESERVED['.'] = true;
+		UNRESERVED['-'] = true;
+		UNRESERVED['*'] = true;
+		UNRESERVED['_'] = true;
+	}
+
+	private final StringBuilder 	  sb   = new StringBuilder(256);
+	// Encoded form of a key followed by '='
+	private final Map<String, String> keys = new HashMap<String, String>();
+
+	public OmniataQueryEncoder() {
+		for (String key : FIXED_KEYS) {
+			keys.put(key, encodeKey(key));
+		}
+	}
+
+	/**
+	 * Returns the URL of the event
+	 * @param baseURL
+	 * @param event
+	 * @return baseURL?key=value&...
+	 */
+	public String url(String baseURL, JSONObject event) {
+		sb.setLength(0);
+		sb.append(baseURL);
+		if (event.length() > 0) {
+			sb.append('?');
+			appendQuery(event);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the event as a query string, empty for an empty event
+	 * @param event
+	 */
+	public String query(JSONObject event) {
+		sb.setLength(0);
+		appendQuery(event);
+		return sb.toString();
+	}
+
+	private void appendQuery(JSONObject event) {
+		boolean first = true;
+		@SuppressWarnings("unchecked")
+		Iterator<String> i = (Iterator<String>)event.keys();
+		while (i.hasNext()) {
+			String key = i.next();
+			if (!first) {
+				sb.append('&');
+			}
+			first = false;
+
+			String encodedKey = keys.get(key);
+			if (encodedKey == null) {
+				encodedKey = encodeKey(key);
+				if (keys.size() < MAX_CACHED_KEYS) {
+					keys.put(key, encodedKey);
+				}
+			}
+			sb.append(encodedKey);
+
+			Object value = event.opt(key);
+			if (value instanceof Integer || value instanceof Long) {
+				// Digits and '-' need no encoding
+				sb.append(((Number)value).longValue());
+			} else if (value != null) {
+				encode(sb, value.toString());
+			}
+		}
+	}
+
+	private static String encodeKey(String key) {
+		StringBuilder sb = new StringBuilder(key.length() + 1);
+		encode(sb, key);
+		return sb.append('=').toString();
+	}
+
+	/**
+	 * Appends the application/x-www-form-urlencoded form of the string encoded as UTF-8.
+	 * Unpaired surrogates are encoded as '?' like String.getBytes() does.
+	 */
+	/* package */ static void encode(StringBuilder sb, String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (UNRESERVED[c]) {
+					sb.append(c);
+				} else if (c == ' ') {
+					sb.append('+');
+				} else {
+					appendByte(sb, c);
+				}
+			} else if (c < 0x800) {
+				appendByte(sb, 0xC0 | (c >> 6));
+				appendByte(sb, 0x80 | (c & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					appendByte(sb, 0xF0 | (cp >> 18));
+					appendByte(sb, 0x80 | ((cp >> 12) & 0x3F));
+					appendByte(sb, 0x80 | ((cp >> 6) & 0x3F));
+					appendByte(sb, 0x80 | (cp & 0x3F));
+				} else {
+					appendByte(sb, '?');
+				}
+			} else {
+				appendByte(sb, 0xE0 | (c >> 12));
+				appendByte(sb, 0x80 | ((c >> 6) & 0x3F));
+				appendByte(sb, 0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static void appendByte(StringBuilder sb, int b) {
+		sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+	}
+}
@@ -0,0 +1,99 @@
+package com.omniata.android.sdk;
+
+import java.util.List;
+
+/**
+ * Storage backend of a {@link PersistentBlockingQueue}. Elements are strings identified by
+ * ids that grow in insertion order. The queue serializes all calls, so implementations
+ * don't need to be thread safe. Methods may do disk I/O and open the storage lazily.
+ */
+/* package */ interface OmniataQueueStorage {
+
+	/**
+	 * Stored element
+	 */
+	static class Record {
+		final long 	 id;
+		final String data;
+
+		Record(long id, String data) {
+			this.id   = id;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * @return The number of stored elements
+	 */
+	int size();
+
+	/**
+	 * @return The total size of the stored elements in bytes
+	 */
+	long bytes();
+
+	/**
+	 * @return The id of the head element, -1 if empty
+	 */
+	long firstId();
+
+	/**
+	 * @return The id of the latest element added, 0 if ids start over from 1
+	 */
+	long lastId();
+
+	/**
+	 * Appends an element
+	 * @param data
+	 * @param createdAt Creation time of the element in milliseconds since the epoch
+	 * @return The id of the element, -1 on failure
+	 */
+	long insert(String data, long createdAt);
+
+	/**
+	 * Reads elements in id order
+	 * @param afterId Only elements with a greater id are returned
+	 * @param max Maximum number of elements returned
+	 */
+	List<Record> read(long afterId, int max);
+
+	/**
+	 * Removes up to n elements from the head
+	 * @return The number of elements removed
+	 */
+	int removeFirst(int n);
+
+	/**
+	 * Removes the element with the given id
+	 * @return true if the element was stored
+	 * @throws UnsupportedOperationException if the storage can only remove from the head
+	 * and the element isn't the head
+	 */
+	boolean remove(long id) throws UnsupportedOperationException;
+
+	/**
+	 * Removes the elements created before the given time
+	 * @return The number of elements removed
+	 */
+	int removeOlderThan(long time);
+
+	/**
+	 * Removes all elements
+	 */
+	void clear();
+
+	/**
+	 * Counts a failed send attempt for up to n elements at the head, if the storage keeps count
+	 */
+	void incrementAttempts(int n);
+
+	/**
+	 * Returns unused space to the file system, called when the queue has been empty for a while
+	 */
+	void compact();
+
+	/**
+	 * Releases open files, the next call reopens them
+	 */
+	void close();
+}
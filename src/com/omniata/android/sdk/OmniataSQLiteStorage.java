@@ -0,0 +1,198 @@
+package com.omniata.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+/**
+ * Queue storage keeping each queue in a table of the shared SQLite database. Several
+ * processes of the app can use the database at the same time.
+ */
+/* package */ class OmniataSQLiteStorage implements OmniataQueueStorage {
+	private static final String TAG = "OmniataSQLiteStorage";
+	private static final int MAX_INSERT_ATTEMPTS = 3;
+	private static final int INSERT_RETRY_TIME   = 100;
+
+	private final OmniataDBHelper 		helper;
+	private final OmniataDBHelper.Table table;
+	private final String 				name;
+	// Whether this storage counts as a user of the shared database
+	private boolean 					retained;
+
+	public OmniataSQLiteStorage(Context context, String name) {
+		this.name   = name;
+		// Opening the database is deferred to the first operation
+		this.helper = OmniataDBHelper.get(context);
+		this.table  = helper.table(name);
+	}
+
+	/**
+	 * Helper method that returns the database bound to this storage, with the table
+	 * of the queue created
+	 * @return The SQLiteDatabase that holds the queue
+	 * @throws SQLiteException if the database can't be opened, e.g. the disk is full
+	 */
+	protected synchronized SQLiteDatabase getDB() throws SQLiteException {
+		if (!retained) {
+			helper.retain();
+			retained = true;
+		}
+		SQLiteDatabase db = helper.getWritableDatabase();
+		table.prepare(db);
+		return db;
+	}
+
+	@Override
+	public int size() {
+		getDB();
+		return table.size();
+	}
+
+	@Override
+	public long bytes() {
+		getDB();
+		return table.bytes();
+	}
+
+	@Override
+	public long firstId() {
+		return OmniataDBHelper.firstId(getDB(), name);
+	}
+
+	@Override
+	public long lastId() {
+		return OmniataDBHelper.lastId(getDB(), name);
+	}
+
+	/**
+	 * Inserts the data, retrying if the database is locked by another process
+	 */
+	@Override
+	public long insert(String data, long createdAt) {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				getDB();
+				synchronized(helper.writeLock) {
+					return table.insert(data, createdAt);
+				}
+			} catch (SQLiteException e) {
+				if (attempt == MAX_INSERT_ATTEMPTS) {
+					OmniataLog.e(TAG, e.toString());
+					return -1;
+				}
+				OmniataLog.w(TAG, "Insert failed, retrying", e);
+				try {
+					Thread.sleep(INSERT_RETRY_TIME * attempt);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return -1;
+				}
+			}
+		}
+	}
+
+	@Override
+	public List<Record> read(long afterId, int max) {
+		List<Record> records = new ArrayList<Record>();
+		Cursor c = OmniataDBHelper.after(getDB(), name, afterId, max);
+		try {
+			for (boolean more = c.moveToFirst(); more; more = c.moveToNext()) {
+				records.add(new Record(c.getLong(0), c.getString(1)));
+			}
+		} finally {
+			c.close();
+		}
+		return records;
+	}
+
+	@Override
+	public int removeFirst(int n) {
+		getDB();
+		synchronized(helper.writeLock) {
+			int removed = table.deleteFirst(n);
+			resetIfEmpty();
+			return removed;
+		}
+	}
+
+	@Override
+	public boolean remove(long id) {
+		SQLiteDatabase db = getDB();
+		synchronized(helper.writeLock) {
+			int removed = OmniataDBHelper.delete(db, name, id);
+			resetIfEmpty();
+			return removed > 0;
+		}
+	}
+
+	@Override
+	public int removeOlderThan(long time) {
+		SQLiteDatabase db = getDB();
+		synchronized(helper.writeLock) {
+			int removed = OmniataDBHelper.deleteOlderThan(db, name, time);
+			resetIfEmpty();
+			return removed;
+		}
+	}
+
+	@Override
+	public void clear() {
+		SQLiteDatabase db = getDB();
+		synchronized(helper.writeLock) {
+			OmniataDBHelper.deleteAll(db, name);
+		}
+	}
+
+	/**
+	 * Starts the ids over from 1 once the table is empty
+	 */
+	private void resetIfEmpty() {
+		SQLiteDatabase db = getDB();
+		if (table.size() == 0) {
+			OmniataDBHelper.resetAutoIncrement(db, name);
+		}
+	}
+
+	@Override
+	public void incrementAttempts(int n) {
+		SQLiteDatabase db = getDB();
+		synchronized(helper.writeLock) {
+			OmniataDBHelper.incrementAttempts(db, name, n);
+		}
+	}
+
+	@Override
+	public void compact() {
+		try {
+			if (!helper.reclaimIfEmpty(getDB())) {
+				OmniataLog.d(TAG, "Other queues have events, not reclaiming space");
+			}
+		} catch (SQLiteException e) {
+			OmniataLog.w(TAG, "Reclaiming space failed", e);
+		}
+	}
+
+	/**
+	 * Returns the value of an integer valued pragma of the database, e.g. freelist_count
+	 *
+	 * @param pragma
+	 */
+	public long pragma(String pragma) {
+		return OmniataDBHelper.pragma(getDB(), pragma);
+	}
+
+	/**
+	 * Stops using the shared database, which is closed once no queue uses it
+	 */
+	@Override
+	public synchronized void close() {
+		if (retained) {
+			retained = false;
+			helper.release();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.omniata.android.sdk;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Sampling rules by event type. Whether an event is kept depends only on the user id and
+ * the event type, so a user's events of a type are either all kept or all dropped, and the
+ * decision stays the same across sessions and app versions.
+ */
+/* package */ class OmniataSampler {
+	private static final String TAG = "OmniataSampler";
+
+	// Replaced on every change so lookups need no locking
+	private volatile Map<String, Double> rates = Collections.emptyMap();
+
+	/**
+	 * @param eventType
+	 * @return The share of events of the type kept, 1 if not sampled
+	 */
+	public double rate(String eventType) {
+		Double rate = rates.get(eventType);
+		return rate != null ? rate : 1.0;
+	}
+
+	/**
+	 * Sets the share of events of a type that are kept
+	 * @param eventType
+	 * @param rate From 0 to 1, 1 keeps every event
+	 * @throws IllegalArgumentException if rate is out of range
+	 */
+	public synchronized void setRate(String eventType, double rate) throws IllegalArgumentException {
+		assertRateValid(rate);
+		Map<String, Double> updated = new HashMap<String, Double>(rates);
+		if (rate < 1.0) {
+			updated.put(eventType, rate);
+		} else {
+			updated.remove(eventType);
+		}
+		rates = updated;
+	}
+
+	/**
+	 * Replaces all rules, e.g. with ones loaded from channel content. Invalid rates are
+	 * skipped with a warning.
+	 * @param rules Object mapping event types to rates
+	 */
+	public synchronized void setRates(JSONObject rules) {
+		Map<String, Double> updated = new HashMap<String, Double>();
+		@SuppressWarnings("unchecked")
+		Iterator<String> i = (Iterator<String>)rules.keys();
+		while (i.hasNext()) {
+			String eventType = i.next();
+			double rate = rules.optDouble(eventType, Double.NaN);
+			if (!(rate >= 0.0 && rate <= 1.0)) {
+				OmniataLog.w(TAG, "Invalid sample rate for {}: {}", eventType, rules.opt(eventType));
+				continue;
+			}
+			if (rate < 1.0) {
+				updated.put(eventType, rate);
+			}
+		}
+		rates = updated;
+	}
+
+	/**
+	 * Decides whether to keep an event. Allocates nothing.
+	 * @param userID
+	 * @param eventType
+	 * @param rate The rate of the event type
+	 * @return true if the event is kept
+	 */
+	public static boolean keep(String userID, String eventType, double rate) {
+		if (rate >= 1.0) {
+			return true;
+		}
+		if (rate <= 0.0) {
+			return false;
+		}
+		long h = hash(userID, eventType);
+		// The top 53 bits as a uniformly distributed double in [0, 1)
+		return (h >>> 11) * 0x1.0p-53 < rate;
+	}
+
+	/**
+	 * Stable 64-bit hash of the user id and event type: FNV-1a over the characters,
+	 * finished with the MurmurHash3 mixer to spread similar ids over the whole range
+	 */
+	/* package */ static long hash(String userID, String eventType) {
+		long h = 0xcbf29ce484222325L;
+		h = fnv(h, userID);
+		// Separator so that ("ab", "c") and ("a", "bc") differ
+		h = (h ^ 0xFFFF) * 0x100000001b3L;
+		h = fnv(h, eventType);
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long fnv(long h, String s) {
+		if (s == null) {
+			return h;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/* package */ static void assertRateValid(double rate) throws IllegalArgumentException {
+		if (!(rate >= 0.0 && rate <= 1.0)) {
+			throw new IllegalArgumentException("Sample rate is invalid");
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.omniata.android.sdk;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background threads shared by all trackers: a single scheduler thread for short periodic
+ * and one-off tasks, and a pool for blocking requests such as channel fetches.
+ */
+/* package */ class OmniataScheduler {
+	private static final int IO_KEEP_ALIVE_SECONDS = 30;
+	
+	private static ScheduledExecutorService executor;
+	private static ExecutorService 			io;
+	
+	/**
+	 * @return The scheduler, tasks must be short, blocking network calls don't belong here
+	 */
+	/* package */ static synchronized ScheduledExecutorService get() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "OmniataScheduler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+	
+	/**
+	 * @return Pool for blocking requests, idle threads are released after a while
+	 */
+	/* package */ static synchronized ExecutorService io() {
+		if (io == null) {
+			io = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "OmniataIO");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return io;
+	}
+}
@@ -0,0 +1,684 @@
+package com.omniata.android.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+
+/**
+ * Queue storage appending the elements to segment files, an alternative to SQLite for
+ * high event volumes. Adding an element is a copy into a memory mapped file, removing
+ * elements from the head only moves the head id, and a segment file is deleted once all
+ * of its elements have been removed. The last segment is kept and reused when the queue
+ * becomes empty.
+ *
+ * Each record is length prefixed and checksummed:
+ *
+ * <pre>
+ * int length | int crc32 | long id | long created at | length bytes of UTF-8 data
+ * </pre>
+ *
+ * A zero length ends the records of a segment. Opening the storage scans the segments
+ * and truncates a torn or corrupt tail, e.g. after a power loss. The head id is stored
+ * in a file of its own.
+ *
+ * Elements can be removed from the head only, and only one process of the app may use
+ * the storage.
+ */
+/* package */ class OmniataSegmentStorage implements OmniataQueueStorage {
+	private static final String  TAG 			= "OmniataSegmentStorage";
+	private static final String  DIRECTORY 		= "omniata_queues";
+	private static final String  SEGMENT_SUFFIX = ".seg";
+	private static final String  HEAD_FILE 		= "head";
+	private static final String  MIGRATED_FILE 	= "migrated";
+	private static final int 	 SEGMENT_SIZE 	= 1024 * 1024;
+	private static final int 	 ZEROS_SIZE 	= 64 * 1024;
+	// Length, checksum, id and creation time
+	private static final int 	 HEADER_SIZE 	= 4 + 4 + 8 + 8;
+	// Checksummed part of the header: id and creation time
+	private static final int 	 CHECKED_OFFSET = 8;
+	private static final Charset UTF8 			= Charset.forName("UTF-8");
+
+	private final Context 		  context;
+	private final String 		  name;
+	private final File 			  directory;
+	private final List<Segment>   segments = new ArrayList<Segment>();
+	private final CRC32 		  crc 	   = new CRC32();
+	private RandomAccessFile 	  headFile;
+	private boolean 			  open;
+	private long 				  headId;
+	// Offset of the head record in the first segment
+	private int 				  headOffset;
+	private long 				  lastId;
+	private int 				  size;
+	private long 				  bytes;
+	private byte[] 				  scratch = new byte[1024];
+
+	// Read position following the latest read, lets paged reads continue without a scan
+	private Segment 			  cursorSegment;
+	private int 				  cursorOffset;
+	private long 				  cursorId = -1;
+
+	private static class Segment {
+		final File 		 file;
+		final long 		 baseId;
+		MappedByteBuffer map;
+		int 			 capacity;
+		// Offset following the last record
+		int 			 end;
+		// Id of the last record, baseId - 1 if there are none
+		long 			 lastId;
+
+		Segment(File file, long baseId) {
+			this.file   = file;
+			this.baseId = baseId;
+			this.lastId = baseId - 1;
+		}
+	}
+
+	/**
+	 * @param context
+	 * @param name Name of the queue, the segments are kept in a directory of this name
+	 */
+	public OmniataSegmentStorage(Context context, String name) {
+		this.context   = context;
+		this.name 	   = name;
+		this.directory = new File(new File(context.getFilesDir(), DIRECTORY), name);
+	}
+
+	/**
+	 * @return The total size of the segment files of all queues in bytes
+	 */
+	public static long directorySize(Context context) {
+		long size = 0;
+		File[] queues = new File(context.getFilesDir(), DIRECTORY).listFiles();
+		if (queues != null) {
+			for (File queue : queues) {
+				File[] files = queue.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						size += file.length();
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Scans the segments, truncating a torn tail, and positions the head
+	 */
+	private void open() {
+		if (open) {
+			return;
+		}
+		open = true;
+
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can't create " + directory);
+			}
+			headFile = new RandomAccessFile(new File(directory, HEAD_FILE), "rw");
+			headId 	 = headFile.length() >= 8 ? headFile.readLong() : 1;
+			lastId 	 = headId - 1;
+
+			for (File file : listSegments()) {
+				String name = file.getName();
+				Segment segment;
+				try {
+					segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					OmniataLog.w(TAG, "Skipping {}", name);
+					continue;
+				}
+				recover(segment);
+				if (segment.lastId < headId) {
+					// Every element of the segment has been removed
+					delete(segment);
+				} else {
+					segments.add(segment);
+					lastId = Math.max(lastId, segment.lastId);
+				}
+			}
+			count();
+		} catch (IOException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+
+		// Events stored before switching to segment files are sent from here. A marker file
+		// records the move so the database isn't opened again, unless it has been written
+		// since, e.g. by a build using SQLite storage.
+		File database = context.getDatabasePath(OmniataDBHelper.DATABASE_NAME);
+		File migrated = new File(directory, MIGRATED_FILE);
+		if (database.exists() && lastModified(database) > migrated.lastModified()) {
+			OmniataQueueStorage legacy = new OmniataSQLiteStorage(context, name);
+			try {
+				moveFrom(legacy);
+			} finally {
+				legacy.close();
+			}
+			try {
+				if (!migrated.createNewFile()) {
+					migrated.setLastModified(System.currentTimeMillis());
+				}
+			} catch (IOException e) {
+				OmniataLog.w(TAG, "Can't write {}", migrated.getName());
+			}
+		}
+	}
+
+	/**
+	 * @return The time the database or its write-ahead log was last written
+	 */
+	private static long lastModified(File database) {
+		return Math.max(database.lastModified(), new File(database.getPath() + "-wal").lastModified());
+	}
+
+	/**
+	 * @return The segment files ordered by their base id
+	 */
+	private File[] listSegments() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+
+		List<File> segmentFiles = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(SEGMENT_SUFFIX) && name.length() > SEGMENT_SUFFIX.length()) {
+				segmentFiles.add(file);
+			}
+		}
+		File[] sorted = segmentFiles.toArray(new File[segmentFiles.size()]);
+		// The names are zero padded, so they sort like the ids
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Validates the records of the segment and cuts it after the last valid one
+	 */
+	private void recover(Segment segment) throws IOException {
+		ByteBuffer map = map(segment);
+		int pos = 0;
+		long expectedId = segment.baseId;
+
+		while (pos + HEADER_SIZE <= segment.capacity) {
+			int length = map.getInt(pos);
+			if (length == 0) {
+				break;
+			}
+			if (length < 0 || length > segment.capacity - pos - HEADER_SIZE
+					|| map.getLong(pos + 8) != expectedId || !checksumValid(map, pos, length)) {
+				OmniataLog.w(TAG, "Truncating {} at offset {}", segment.file.getName(), Integer.valueOf(pos));
+				map.putInt(pos, 0);
+				break;
+			}
+			pos += HEADER_SIZE + length;
+			expectedId++;
+		}
+
+		segment.end 	= pos;
+		segment.lastId  = expectedId - 1;
+	}
+
+	private boolean checksumValid(ByteBuffer map, int pos, int length) {
+		int checked = HEADER_SIZE - CHECKED_OFFSET + length;
+		byte[] b = scratch(checked);
+		ByteBuffer record = map.duplicate();
+		record.position(pos + CHECKED_OFFSET);
+		record.get(b, 0, checked);
+		crc.reset();
+		crc.update(b, 0, checked);
+		return (int)crc.getValue() == map.getInt(pos + 4);
+	}
+
+	/**
+	 * Positions the head on the first record not removed and counts the remaining records
+	 */
+	private void count() {
+		size  = 0;
+		bytes = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			ByteBuffer map = map(segment);
+			int pos = 0;
+			for (long id = segment.baseId; id <= segment.lastId; id++) {
+				int length = map.getInt(pos);
+				if (id >= headId) {
+					if (size == 0) {
+						headId 	   = id;
+						headOffset = pos;
+					}
+					size++;
+					bytes += length;
+				}
+				pos += HEADER_SIZE + length;
+			}
+			release(segment);
+		}
+		if (size == 0) {
+			headId = lastId + 1;
+			reset();
+		}
+	}
+
+	@Override
+	public int size() {
+		open();
+		return size;
+	}
+
+	@Override
+	public long bytes() {
+		open();
+		return bytes;
+	}
+
+	@Override
+	public long firstId() {
+		open();
+		return size == 0 ? -1 : headId;
+	}
+
+	@Override
+	public long lastId() {
+		open();
+		return lastId;
+	}
+
+	@Override
+	public long insert(String data, long createdAt) {
+		open();
+
+		byte[] encoded = data.getBytes(UTF8);
+		int recordSize = HEADER_SIZE + encoded.length;
+		long id = lastId + 1;
+
+		try {
+			Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			// Room for the record and the terminating zero length
+			if (tail == null || tail.end + recordSize + 4 > tail.capacity) {
+				tail = roll(id, recordSize + 4);
+			}
+
+			byte[] b = scratch(recordSize);
+			ByteBuffer record = ByteBuffer.wrap(b);
+			record.putInt(encoded.length);
+			record.putInt(0);
+			record.putLong(id);
+			record.putLong(createdAt);
+			record.put(encoded);
+			crc.reset();
+			crc.update(b, CHECKED_OFFSET, recordSize - CHECKED_OFFSET);
+			record.putInt(4, (int)crc.getValue());
+
+			ByteBuffer map = map(tail);
+			map.position(tail.end);
+			map.put(b, 0, recordSize);
+			if (tail.end + recordSize + 4 <= tail.capacity) {
+				map.putInt(tail.end + recordSize, 0);
+			}
+			tail.end   += recordSize;
+			tail.lastId = id;
+		} catch (IOException e) {
+			OmniataLog.e(TAG, e.toString());
+			return -1;
+		}
+
+		if (size == 0) {
+			headId 	   = id;
+			headOffset = segments.get(0).end - recordSize;
+		}
+		lastId = id;
+		size++;
+		bytes += encoded.length;
+		return id;
+	}
+
+	/**
+	 * Starts a new segment
+	 * @param baseId The id of the first record of the segment
+	 * @param minCapacity Bytes needed for the first record
+	 */
+	private Segment roll(long baseId, int minCapacity) throws IOException {
+		Segment previous = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (previous != null) {
+			map(previous).force();
+		}
+
+		String name = String.format(Locale.US, "%019d%s", Long.valueOf(baseId), SEGMENT_SUFFIX);
+		Segment segment = new Segment(new File(directory, name), baseId);
+		RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+		try {
+			preallocate(file.getChannel(), Math.max(SEGMENT_SIZE, minCapacity));
+		} catch (IOException e) {
+			file.close();
+			segment.file.delete();
+			throw e;
+		} finally {
+			file.close();
+		}
+		segments.add(segment);
+
+		if (previous != null && previous != segments.get(0)) {
+			release(previous);
+		}
+		return segment;
+	}
+
+	/**
+	 * Writes zeros up to the capacity. The blocks of a sparse file, e.g. from setLength(),
+	 * would be allocated only when written through the mapping, and a full disk would then
+	 * kill the process with SIGBUS instead of failing the insert.
+	 */
+	private static void preallocate(FileChannel channel, int capacity) throws IOException {
+		ByteBuffer zeros = ByteBuffer.allocate(Math.min(ZEROS_SIZE, capacity));
+		long pos = 0;
+		while (pos < capacity) {
+			zeros.clear();
+			zeros.limit((int)Math.min(zeros.capacity(), capacity - pos));
+			pos += channel.write(zeros, pos);
+		}
+		channel.force(false);
+	}
+
+	@Override
+	public List<Record> read(long afterId, int max) {
+		open();
+
+		List<Record> records = new ArrayList<Record>();
+		long id = Math.max(afterId + 1, headId);
+		if (size == 0 || id > lastId) {
+			return records;
+		}
+
+		// Find the record, continuing from the previous read if possible
+		Segment segment;
+		int pos;
+		long posId;
+		if (id == cursorId && segments.contains(cursorSegment)) {
+			segment = cursorSegment;
+			pos 	= cursorOffset;
+			posId 	= cursorId;
+		} else {
+			int i = segments.size() - 1;
+			while (i > 0 && segments.get(i).baseId > id) {
+				i--;
+			}
+			segment = segments.get(i);
+			pos 	= i == 0 ? headOffset : 0;
+			posId 	= i == 0 ? headId : segment.baseId;
+		}
+
+		ByteBuffer map = map(segment);
+		while (records.size() < max) {
+			if (posId > segment.lastId) {
+				int next = segments.indexOf(segment) + 1;
+				if (next == segments.size()) {
+					break;
+				}
+				if (next > 1) {
+					// Keep the head and tail segments mapped only
+					release(segment);
+				}
+				segment = segments.get(next);
+				map 	= map(segment);
+				pos 	= 0;
+				posId 	= segment.baseId;
+				continue;
+			}
+
+			int length = map.getInt(pos);
+			if (posId >= id) {
+				byte[] b = scratch(length);
+				ByteBuffer data = map.duplicate();
+				data.position(pos + HEADER_SIZE);
+				data.get(b, 0, length);
+				records.add(new Record(posId, new String(b, 0, length, UTF8)));
+			}
+			pos += HEADER_SIZE + length;
+			posId++;
+		}
+
+		cursorSegment = segment;
+		cursorOffset  = pos;
+		cursorId 	  = posId;
+		return records;
+	}
+
+	@Override
+	public int removeFirst(int n) {
+		open();
+		int removed = advance(n, Long.MAX_VALUE);
+		writeHead();
+		return removed;
+	}
+
+	@Override
+	public boolean remove(long id) throws UnsupportedOperationException {
+		open();
+		if (size == 0 || id < headId || id > lastId) {
+			return false;
+		}
+		if (id != headId) {
+			throw new UnsupportedOperationException("Segment files remove from the head only");
+		}
+		return removeFirst(1) == 1;
+	}
+
+	/**
+	 * Removes the old elements at the head. Elements are appended in about their creation
+	 * order, so the expired elements are found there.
+	 */
+	@Override
+	public int removeOlderThan(long time) {
+		open();
+		int removed = advance(Integer.MAX_VALUE, time);
+		writeHead();
+		return removed;
+	}
+
+	/**
+	 * Moves the head past up to n records created before the given time, deleting the
+	 * segments left behind
+	 * @return The number of records removed
+	 */
+	private int advance(int n, long createdBefore) {
+		int removed = 0;
+		while (removed < n && size > 0) {
+			Segment segment = segments.get(0);
+			if (headId > segment.lastId) {
+				dropHeadSegment();
+				continue;
+			}
+			ByteBuffer map = map(segment);
+			if (map.getLong(headOffset + 16) >= createdBefore) {
+				break;
+			}
+			int length = map.getInt(headOffset);
+			headOffset += HEADER_SIZE + length;
+			headId++;
+			size--;
+			bytes -= length;
+			removed++;
+		}
+
+		if (size == 0) {
+			headId = lastId + 1;
+			reset();
+		} else if (headId > segments.get(0).lastId) {
+			dropHeadSegment();
+		}
+		return removed;
+	}
+
+	private void dropHeadSegment() {
+		delete(segments.remove(0));
+		headOffset = 0;
+		// Records lost to a corrupt segment leave a gap in the ids
+		headId = Math.max(headId, segments.get(0).baseId);
+	}
+
+	@Override
+	public void clear() {
+		open();
+		headId = lastId + 1;
+		reset();
+		writeHead();
+	}
+
+	@Override
+	public void incrementAttempts(int n) {
+		// Records are immutable, attempts aren't counted
+	}
+
+	@Override
+	public void compact() {
+		// Segments are deleted as soon as their elements have been removed
+	}
+
+	@Override
+	public void close() {
+		if (!open) {
+			return;
+		}
+		if (!segments.isEmpty()) {
+			Segment tail = segments.get(segments.size() - 1);
+			if (tail.map != null) {
+				tail.map.force();
+			}
+		}
+		try {
+			if (headFile != null) {
+				headFile.close();
+			}
+		} catch (IOException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+		headFile = null;
+		segments.clear();
+		cursorSegment = null;
+		cursorId 	  = -1;
+		size 		  = 0;
+		bytes 		  = 0;
+		open 		  = false;
+	}
+
+	/**
+	 * Moves the elements of another storage to the end of this one. Elements are copied
+	 * before they are removed, so a crash in between may store some of them twice.
+	 */
+	private void moveFrom(OmniataQueueStorage other) {
+		int moved = 0;
+		while (true) {
+			List<Record> records = other.read(0, 100);
+			if (records.isEmpty()) {
+				break;
+			}
+			for (Record record : records) {
+				insert(record.data, System.currentTimeMillis());
+			}
+			moved += other.removeFirst(records.size());
+		}
+		if (moved > 0) {
+			OmniataLog.i(TAG, "Moved {} stored events to segment files", moved);
+		}
+	}
+
+	private void writeHead() {
+		if (headFile == null) {
+			return;
+		}
+		try {
+			headFile.seek(0);
+			headFile.writeLong(headId);
+		} catch (IOException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+	}
+
+	/**
+	 * Returns the mapped contents of the segment, mapping it if needed
+	 */
+	private MappedByteBuffer map(Segment segment) {
+		if (segment.map == null) {
+			try {
+				RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+				try {
+					segment.capacity = (int)file.length();
+					// The mapping stays valid after the file has been closed
+					segment.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment.capacity);
+				} finally {
+					file.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e.toString());
+			}
+		}
+		return segment.map;
+	}
+
+	/**
+	 * Drops the mapping of the segment, it's unmapped once garbage collected
+	 */
+	private void release(Segment segment) {
+		if (segment.map != null && segment != segments.get(segments.size() - 1)) {
+			segment.map = null;
+		}
+	}
+
+	private void delete(Segment segment) {
+		segment.map = null;
+		if (segment == cursorSegment) {
+			cursorSegment = null;
+			cursorId 	  = -1;
+		}
+		if (!segment.file.delete()) {
+			OmniataLog.w(TAG, "Can't delete {}", segment.file.getName());
+		}
+	}
+
+	/**
+	 * Empties the queue but keeps the tail segment, so that a queue drained after every
+	 * send doesn't create, preallocate and delete a file per event. The following records
+	 * are appended after the removed ones, and the segment is deleted once it's full and
+	 * all of them have been removed like any other.
+	 */
+	private void reset() {
+		Segment tail = segments.isEmpty() ? null : segments.remove(segments.size() - 1);
+		deleteAll();
+		if (tail != null) {
+			segments.add(tail);
+			headOffset = tail.end;
+		}
+	}
+
+	private void deleteAll() {
+		for (Segment segment : segments) {
+			delete(segment);
+		}
+		segments.clear();
+		headOffset = 0;
+		size 	   = 0;
+		bytes 	   = 0;
+	}
+
+	private byte[] scratch(int length) {
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		return scratch;
+	}
+}
@@ -0,0 +1,276 @@
+package com.omniata.android.sdk;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and latency histograms describing the behavior of the SDK.
+ *
+ * Recording is lock free and allocates nothing, so it can stay enabled in production.
+ * Use {@link #snapshotAndReset()} to periodically ship the stats as own telemetry.
+ */
+public class OmniataStats {
+
+	public enum Counter {
+		EVENTS_TRACKED,
+		EVENTS_PERSISTED,
+		EVENTS_SENT,
+		EVENTS_DISCARDED,
+		EVENTS_EXPIRED,
+		EVENTS_SAMPLED_OUT,
+		SEND_RETRIES,
+		BYTES_SENT
+	}
+
+	public enum Histogram {
+		ENQUEUE_TO_SEND_MS,
+		SEND_RTT_MS
+	}
+
+	// Upper bounds (inclusive) of the histogram buckets in milliseconds
+	private static final long[] BUCKET_BOUNDS = {
+		1, 2, 5, 10, 20, 50, 100, 200, 500,
+		1000, 2000, 5000, 10000, 30000, 60000,
+		300000, 3600000, 86400000
+	};
+	public static final int BUCKETS = BUCKET_BOUNDS.length + 1;
+
+	// Power of two so a stripe can be picked with a mask
+	private static final int STRIPES = 8;
+	// Cells of different stripes are kept a cache line apart to avoid false sharing
+	private static final int PADDING = 8;
+
+	private static final StripedCounter[] counters = new StripedCounter[Counter.values().length];
+	private static final FixedHistogram[] histograms = new FixedHistogram[Histogram.values().length];
+	private static final Collection<Collection<?>> queues = new CopyOnWriteArrayList<Collection<?>>();
+
+	static {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new StripedCounter();
+		}
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new FixedHistogram();
+		}
+	}
+
+	private OmniataStats() {
+	}
+
+	/**
+	 * Returns the upper bounds (inclusive) of the histogram buckets in milliseconds.
+	 * Values above the last bound go to an overflow bucket.
+	 */
+	public static long[] getBucketBounds() {
+		return BUCKET_BOUNDS.clone();
+	}
+
+	/* package */ static void increment(Counter counter) {
+		counters[counter.ordinal()].add(1);
+	}
+
+	/* package */ static void add(Counter counter, long n) {
+		counters[counter.ordinal()].add(n);
+	}
+
+	/* package */ static void record(Histogram histogram, long valueMS) {
+		histograms[histogram.ordinal()].record(valueMS);
+	}
+
+	/**
+	 * Registers a queue whose size is reported as the queue depth
+	 * @param queue
+	 */
+	/* package */ static void registerQueue(Collection<?> queue) {
+		queues.add(queue);
+	}
+
+	/**
+	 * Returns the current stats
+	 */
+	public static Snapshot snapshot() {
+		return takeSnapshot(false);
+	}
+
+	/**
+	 * Returns the stats accumulated since the previous reset and starts accumulating from zero.
+	 * The queue depth is a gauge and isn't affected by the reset.
+	 */
+	public static Snapshot snapshotAndReset() {
+		return takeSnapshot(true);
+	}
+
+	private static Snapshot takeSnapshot(boolean reset) {
+		Snapshot snapshot = new Snapshot();
+
+		for (int i = 0; i < counters.length; i++) {
+			snapshot.counters[i] = counters[i].sum(reset);
+		}
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i].copy(snapshot.buckets[i], reset);
+			snapshot.sums[i] = histograms[i].sum(reset);
+		}
+		for (Collection<?> queue : queues) {
+			snapshot.queueDepth += queue.size();
+		}
+		return snapshot;
+	}
+
+	private static int stripe() {
+		return ((int)Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+	}
+
+	private static int bucket(long value) {
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			if (value <= BUCKET_BOUNDS[i]) {
+				return i;
+			}
+		}
+		return BUCKET_BOUNDS.length;
+	}
+
+	/**
+	 * Counter spread over several cells to reduce contention between threads
+	 */
+	private static class StripedCounter {
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		void add(long n) {
+			cells.addAndGet(stripe(), n);
+		}
+
+		long sum(boolean reset) {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				sum += reset ? cells.getAndSet(i * PADDING, 0) : cells.get(i * PADDING);
+			}
+			return sum;
+		}
+	}
+
+	private static class FixedHistogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final StripedCounter sum = new StripedCounter();
+
+		void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			buckets.incrementAndGet(bucket(value));
+			sum.add(value);
+		}
+
+		void copy(long[] to, boolean reset) {
+			for (int i = 0; i < BUCKETS; i++) {
+				to[i] = reset ? buckets.getAndSet(i, 0) : buckets.get(i);
+			}
+		}
+
+		long sum(boolean reset) {
+			return sum.sum(reset);
+		}
+	}
+
+	/**
+	 * Point in time copy of the stats
+	 */
+	public static class Snapshot {
+		private final long[]   counters = new long[Counter.values().length];
+		private final long[][] buckets  = new long[Histogram.values().length][BUCKETS];
+		private final long[]   sums     = new long[Histogram.values().length];
+		private final long     timestamp;
+		private int            queueDepth;
+
+		private Snapshot() {
+			this.timestamp = System.currentTimeMillis();
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Number of events stored on the device waiting to be sent
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		public long getCounter(Counter counter) {
+			return counters[counter.ordinal()];
+		}
+
+		/**
+		 * Returns the bucket counts of the histogram, bucket i counts values up to getBucketBounds()[i]
+		 * @param histogram
+		 */
+		public long[] getBuckets(Histogram histogram) {
+			return buckets[histogram.ordinal()].clone();
+		}
+
+		public long getCount(Histogram histogram) {
+			long count = 0;
+			for (long c : buckets[histogram.ordinal()]) {
+				count += c;
+			}
+			return count;
+		}
+
+		public long getSum(Histogram histogram) {
+			return sums[histogram.ordinal()];
+		}
+
+		/**
+		 * Returns the upper bound of the bucket containing the given percentile,
+		 * or Long.MAX_VALUE if it falls into the overflow bucket
+		 * @param histogram
+		 * @param percentile between 0 and 100
+		 */
+		public long getPercentile(Histogram histogram, double percentile) {
+			long[] b = buckets[histogram.ordinal()];
+			long count = getCount(histogram);
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long)Math.ceil(count * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+				seen += b[i];
+				if (seen >= rank) {
+					return BUCKET_BOUNDS[i];
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		public JSONObject toJSON() {
+			JSONObject json = new JSONObject();
+			try {
+				json.put("timestamp", timestamp);
+				json.put("queue_depth", queueDepth);
+				for (Counter counter : Counter.values()) {
+					json.put(counter.name().toLowerCase(Locale.US), getCounter(counter));
+				}
+				for (Histogram histogram : Histogram.values()) {
+					String name = histogram.name().toLowerCase(Locale.US);
+					json.put(name + "_count", getCount(histogram));
+					json.put(name + "_sum", getSum(histogram));
+					json.put(name + "_p50", getPercentile(histogram, 50));
+					json.put(name + "_p95", getPercentile(histogram, 95));
+					json.put(name + "_p99", getPercentile(histogram, 99));
+				}
+			} catch (JSONException e) {
+			}
+			return json;
+		}
+
+		@Override
+		public String toString() {
+			return toJSON().toString();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.omniata.android.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Point in time description of the storage used by the SDK, see {@link Omniata#getStorageInfo()}
+ */
+public class OmniataStorageInfo {
+	private final long fileSize;
+	private final long pageSize;
+	private final long pageCount;
+	private final long freePages;
+	private final long queuedEvents;
+	private final long queuedBytes;
+
+	/* package */ OmniataStorageInfo(long fileSize, long pageSize, long pageCount, long freePages, long queuedEvents, long queuedBytes) {
+		this.fileSize 	  = fileSize;
+		this.pageSize 	  = pageSize;
+		this.pageCount 	  = pageCount;
+		this.freePages 	  = freePages;
+		this.queuedEvents = queuedEvents;
+		this.queuedBytes  = queuedBytes;
+	}
+
+	/**
+	 * Size of the database files on disk in bytes, including the write-ahead log
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getPageSize() {
+		return pageSize;
+	}
+
+	public long getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * Number of unused pages that are returned to the file system once the queues are idle
+	 */
+	public long getFreePages() {
+		return freePages;
+	}
+
+	/**
+	 * Number of events stored on the device waiting to be sent
+	 */
+	public long getQueuedEvents() {
+		return queuedEvents;
+	}
+
+	/**
+	 * Total size of the events waiting to be sent in bytes
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		try {
+			json.put("file_size", fileSize);
+			json.put("page_size", pageSize);
+			json.put("page_count", pageCount);
+			json.put("free_pages", freePages);
+			json.put("queued_events", queuedEvents);
+			json.put("queued_bytes", queuedBytes);
+		} catch (JSONException e) {
+		}
+		return json;
+	}
+
+	@Override
+	public String toString() {
+		return toJSON().toString();
+	}
+}
@@ -0,0 +1,113 @@
+package com.omniata.android.sdk;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Request timeouts derived from the latencies recently observed on the current type of
+ * network. Until enough requests have been seen the maximum timeout is used.
+ */
+/* package */ class OmniataTimeouts {
+	private static final int SECONDS 	 = 1000;
+	static final int 		 DEFAULT_MIN = 5  * SECONDS;
+	static final int 		 DEFAULT_MAX = 30 * SECONDS;
+	// Latency of the last requests kept per network type
+	private static final int SAMPLES 	 = 64;
+	private static final int MIN_SAMPLES = 8;
+	// Timeout as a multiple of the 95th percentile latency
+	private static final int MULTIPLIER  = 4;
+
+	private static final int NETWORK_WIFI   = 0;
+	private static final int NETWORK_MOBILE = 1;
+	private static final int NETWORK_OTHER  = 2;
+
+	private final Context  context;
+	private final long[][] samples = new long[3][SAMPLES];
+	private final int[]    counts  = new int[3];
+	private int 		   min;
+	private int 		   max;
+
+	public OmniataTimeouts(Context context) {
+		this.context = context;
+		this.min 	 = DEFAULT_MIN;
+		this.max 	 = DEFAULT_MAX;
+	}
+
+	/**
+	 * Sets the bounds of the timeouts
+	 * @param min Minimum timeout in milliseconds
+	 * @param max Maximum timeout in milliseconds, used until latencies have been observed
+	 */
+	public synchronized void setBounds(int min, int max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * @return The timeout in milliseconds for a request on the current network
+	 */
+	public synchronized int timeout() {
+		long p95 = percentile(network(), 95);
+		if (p95 < 0) {
+			return max;
+		}
+		return (int)Math.max(min, Math.min(max, p95 * MULTIPLIER));
+	}
+
+	/**
+	 * @param percent
+	 * @return The latency percentile in milliseconds on the current network, -1 if not
+	 * enough requests have been observed
+	 */
+	public synchronized long percentile(int percent) {
+		return percentile(network(), percent);
+	}
+
+	/**
+	 * Records the latency of a completed request
+	 * @param latencyMS
+	 */
+	public synchronized void record(long latencyMS) {
+		int network = network();
+		samples[network][counts[network] % SAMPLES] = latencyMS;
+		counts[network]++;
+	}
+
+	/**
+	 * Records a request that timed out. The latency is at least the timeout, counting it
+	 * keeps a too short timeout from failing every request.
+	 * @param timeoutMS
+	 */
+	public void recordTimeout(int timeoutMS) {
+		record(timeoutMS);
+	}
+
+	private long percentile(int network, int percent) {
+		int n = Math.min(counts[network], SAMPLES);
+		if (n < MIN_SAMPLES) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(samples[network], n);
+		Arrays.sort(sorted);
+		return sorted[Math.min(n - 1, n * percent / 100)];
+	}
+
+	private int network() {
+		ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+		if (info == null) {
+			return NETWORK_OTHER;
+		}
+		switch (info.getType()) {
+		case ConnectivityManager.TYPE_WIFI:
+			return NETWORK_WIFI;
+		case ConnectivityManager.TYPE_MOBILE:
+			return NETWORK_MOBILE;
+		default:
+			return NETWORK_OTHER;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package com.omniata.android.sdk;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Tracks events with its own API key and user id into its own queue. All trackers share
+ * the threads and connections of the SDK, see {@link Omniata#getTracker(String, String, String)}.
+ */
+public class OmniataTracker {
+	private static final String TAG = "OmniataTracker";
+
+	private final String 								name;
+	private String 										apiKey;
+	private volatile String 							userID;
+	private final BlockingQueue<OmniataEventLogger.Entry> eventBuffer;
+	private final OmniataEventWorker 					eventWorker;
+	private final OmniataAggregator 					aggregator;
+	private final OmniataSampler 						sampler;
+	/* package */ final PersistentBlockingQueue<JSONObject> eventLog;
+	/* package */ final OmniataFlushTracker 				flushTracker;
+	// Rows at the head to send one by one after their batch was rejected, used by the event worker only
+	/* package */ int 									unbatchedRows;
+	// Failed sends in a row and the time before which the event worker skips this tracker
+	/* package */ int 									retries;
+	/* package */ volatile long 						retryAt;
+
+	/* package */ OmniataTracker(String name, OmniataQueueStorage storage, String apiKey, String userID,
+			BlockingQueue<OmniataEventLogger.Entry> eventBuffer, OmniataEventWorker eventWorker, OmniataSampler sampler) {
+		this.name 		  = name;
+		this.apiKey 	  = apiKey;
+		this.userID 	  = userID;
+		this.eventBuffer  = eventBuffer;
+		this.eventWorker  = eventWorker;
+		this.sampler 	  = sampler;
+		this.eventLog 	  = new PersistentBlockingQueue<JSONObject>(storage, JSONObject.class);
+		this.flushTracker = new OmniataFlushTracker(eventLog);
+		this.aggregator   = new OmniataAggregator(new OmniataAggregator.Sink() {
+
+			@Override
+			public void emit(String eventType, JSONObject parameters) {
+				// The rollup of sampled events is weighted like them
+				_track(eventType, parameters, OmniataTracker.this.sampler.rate(eventType));
+			}
+		});
+		OmniataStats.registerQueue(eventLog);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Tracks a parameterless event
+	 *
+	 * @param eventType
+	 * @throws IllegalArgumentException if eventType is null or empty
+	 */
+	public void track(String eventType) throws IllegalArgumentException {
+		track(eventType, null);
+	}
+
+	/**
+	 * Tracks an event with parameters
+	 * @param eventType
+	 * @param parameters
+	 * @throws IllegalArgumentException	if eventType is null or empty
+	 */
+	public void track(String eventType, JSONObject parameters) throws IllegalArgumentException {
+		double rate = sampler.rate(eventType);
+		if (!OmniataSampler.keep(userID, eventType, rate)) {
+			OmniataStats.increment(OmniataStats.Counter.EVENTS_SAMPLED_OUT);
+			return;
+		}
+		if (!aggregator.add(eventType, parameters)) {
+			_track(eventType, parameters, rate);
+		}
+	}
+
+	/**
+	 * Tracks a load event with additional parameters
+	 * @param parameters Additional parameters to track with event, may be null
+	 */
+	public void trackLoad(JSONObject parameters) {
+		if (parameters == null) {
+			parameters = new JSONObject();
+		}
+		track("om_load", OmniataUtils.mergeJSON(Omniata.getAutomaticParameters(), parameters));
+	}
+
+	/**
+	 * Tracks a revenue event
+	 *
+	 * @param total Revenue amount in currency code
+	 * @param currencyCode A three letter currency code following ISO-4217 spec.
+	 * @param additionalParams Additional parameters to be tracked with event, may be null
+	 */
+	public void trackRevenue(double total, String currencyCode, JSONObject additionalParams) {
+		JSONObject parameters = new JSONObject();
+
+		try {
+			parameters.put("total", total); // Java doesn't use locale-specific formatting, so this is safe
+			parameters.put("currency_code", currencyCode);
+
+			if (additionalParams != null) {
+				@SuppressWarnings("unchecked")
+				Iterator<String> i = (Iterator<String>)additionalParams.keys();
+				while(i.hasNext()) {
+					String key = (String)i.next();
+					Object val = additionalParams.get(key);
+					parameters.put(key, val);
+				}
+			}
+
+			track("om_revenue", parameters);
+
+		} catch (JSONException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+	}
+
+	/**
+	 * Sets the user id used to track events
+	 * @param userId
+	 * @throws IllegalArgumentException if userID is null or empty
+	 */
+	public synchronized void setUserId(String userId) throws IllegalArgumentException {
+		OmniataUtils.assertUserIdValid(userId);
+		this.userID = userId;
+	}
+
+	/**
+	 * Sets the API key used to track events
+	 * @param apiKey
+	 * @throws IllegalArgumentException if apiKey is null or empty
+	 */
+	public synchronized void setApiKey(String apiKey) throws IllegalArgumentException {
+		OmniataUtils.assertApiKeyValid(apiKey);
+		this.apiKey = apiKey;
+	}
+
+	/**
+	 * Fetches content for this tracker's user from a specific channel
+	 *
+	 * @param channelId The id of this channel
+	 * @param handler An object implementing OmniataChannelResponseHandler
+	 */
+	public synchronized void channel(int channelId, OmniataChannelResponseHandler handler) {
+		OmniataChannelFetcher.channel(apiKey, userID, channelId, handler);
+	}
+
+	/**
+	 * Fetches content for this tracker's user from several channels, see
+	 * {@link Omniata#channels(int[], OmniataChannelResponseHandler[])}
+	 *
+	 * @param channelIds The ids of the channels
+	 * @param handlers Handlers for the channels, handlers[i] receives the content of channelIds[i]
+	 * @throws IllegalArgumentException if channelIds and handlers differ in length
+	 */
+	public synchronized void channels(int[] channelIds, OmniataChannelResponseHandler[] handlers) throws IllegalArgumentException {
+		if (channelIds == null || handlers == null || channelIds.length != handlers.length) {
+			throw new IllegalArgumentException("Channel ids and handlers don't match");
+		}
+		OmniataChannelFetcher.channels(apiKey, userID, channelIds.clone(), handlers.clone());
+	}
+
+	/**
+	 * Aggregates events of the given type, see {@link Omniata#aggregate(String, long, String...)}
+	 *
+	 * @param eventType
+	 * @param windowMillis Length of the time window in milliseconds
+	 * @param groupBy Parameters whose values identify a group
+	 * @throws IllegalArgumentException if eventType is invalid or windowMillis isn't positive
+	 */
+	public void aggregate(String eventType, long windowMillis, String... groupBy) throws IllegalArgumentException {
+		OmniataUtils.assertValidEventType(eventType);
+		if (windowMillis <= 0) {
+			throw new IllegalArgumentException("Aggregation window is invalid");
+		}
+		aggregator.register(eventType, windowMillis, groupBy != null ? groupBy.clone() : null);
+	}
+
+	/**
+	 * Stops aggregating events of the given type, the accumulated events are tracked
+	 * @param eventType
+	 */
+	public void stopAggregating(String eventType) {
+		aggregator.unregister(eventType);
+	}
+
+	/**
+	 * Tracks the aggregated events accumulated so far without waiting for their windows to close
+	 */
+	public void flushAggregates() {
+		aggregator.flush();
+	}
+
+	/**
+	 * Sends the events tracked so far, see {@link Omniata#flush(long)}
+	 *
+	 * @param timeoutMillis Time after which the returned future gives up
+	 * @return Future completing with true once every event tracked before the call has been sent
+	 */
+	public Future<Boolean> flush(long timeoutMillis) {
+		flushAggregates();
+		Future<Boolean> future = flushTracker.flush(timeoutMillis);
+		eventWorker.wakeUp();
+		return future;
+	}
+
+	/**
+	 * Decides whether to keep an event before its parameters are built, counting it if
+	 * it's sampled out, see {@link #trackOwned(String, JSONObject, double)}
+	 * @param eventType
+	 * @return The sample rate of the event type if the event is kept, 0 if it's dropped
+	 * @throws IllegalArgumentException if eventType is null or empty
+	 */
+	/* package */ double sample(String eventType) throws IllegalArgumentException {
+		OmniataUtils.assertValidEventType(eventType);
+		double rate = sampler.rate(eventType);
+		if (!OmniataSampler.keep(userID, eventType, rate)) {
+			OmniataStats.increment(OmniataStats.Counter.EVENTS_SAMPLED_OUT);
+			return 0.0;
+		}
+		return rate;
+	}
+
+	/**
+	 * Tracks an event kept by {@link #sample(String)} whose parameters object was created
+	 * for it and isn't used by the caller afterwards, e.g. one parsed from Unity, so it's
+	 * stored without copying
+	 * @param eventType
+	 * @param parameters
+	 * @param sampleRate The rate returned by {@link #sample(String)}
+	 */
+	/* package */ void trackOwned(String eventType, JSONObject parameters, double sampleRate) {
+		if (!aggregator.add(eventType, parameters)) {
+			enqueue(eventType, parameters, sampleRate);
+		}
+	}
+	
+	/**
+	 * @param eventType
+	 * @param parameters
+	 * @param sampleRate Rate at which events of the type are kept, stamped on the event if below 1
+	 * @throws IllegalArgumentException if eventType is null or empty
+	 */
+	protected synchronized void _track(String eventType, JSONObject parameters, double sampleRate) throws IllegalArgumentException {
+		JSONObject event;
+
+		OmniataUtils.assertValidEventType(eventType);
+
+		try {
+			if (parameters != null) {
+				event = new JSONObject(parameters.toString());
+			} else {
+				event = new JSONObject();
+			}
+			enqueue(eventType, event, sampleRate);
+		} catch (JSONException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+	}
+	
+	private synchronized void enqueue(String eventType, JSONObject event, double sampleRate) {
+		try {
+			event.put("om_event_type", eventType);
+			event.put("api_key", apiKey);
+			event.put("uid", userID);
+			event.put("om_creation_time", System.currentTimeMillis());
+			// Sent with every attempt so the server can drop the copies of a resent event
+			event.put("om_event_id", UUID.randomUUID().toString());
+			if (sampleRate < 1.0) {
+				// Lets the server count each kept event as 1 / om_sample_rate events
+				event.put("om_sample_rate", sampleRate);
+			}
+
+			// Serialized for the listeners before the logger thread can read the event
+			OmniataEventTap.publish(event);
+
+			OmniataEventLogger.Entry entry = new OmniataEventLogger.Entry(this, event);
+			while(true) {
+				try {
+					eventBuffer.put(entry);
+					flushTracker.onTracked();
+					OmniataStats.increment(OmniataStats.Counter.EVENTS_TRACKED);
+					break;
+				} catch (InterruptedException e) {
+				}
+			}
+		} catch (JSONException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+	}
+
+	/**
+	 * Stores an event taken from the event buffer, called on the logger thread
+	 * @return false if the storage failed, e.g. the disk is full, and the event wasn't stored
+	 */
+	/* package */ boolean persist(JSONObject event) {
+		if (!eventLog.offer(event, event.optLong("om_creation_time", System.currentTimeMillis()))) {
+			return false;
+		}
+		OmniataStats.increment(OmniataStats.Counter.EVENTS_PERSISTED);
+		flushTracker.onPersisted();
+		eventWorker.onEventAvailable();
+		return true;
+	}
+}
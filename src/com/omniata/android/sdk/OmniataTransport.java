@@ -0,0 +1,32 @@
+package com.omniata.android.sdk;
+
+/**
+ * Performs the HTTP requests of the SDK. The default transport uses HttpURLConnection,
+ * a custom one can be set with {@link Omniata#setTransport(OmniataTransport)}, e.g. to
+ * point the SDK to a local in-process server.
+ */
+public interface OmniataTransport {
+	/**
+	 * Performs a GET request. Implementations must call exactly one of the handler's
+	 * methods before returning.
+	 * 
+	 * @param url The full url including the query string
+	 * @param connectTimeout Connect timeout in milliseconds, 0 for none
+	 * @param readTimeout Read timeout in milliseconds, 0 for none
+	 * @param handler Receives the response
+	 */
+	public void get(String url, int connectTimeout, int readTimeout, OmniataHttpResponseHandler handler);
+	
+	/**
+	 * Performs a POST request. Implementations must call exactly one of the handler's
+	 * methods before returning.
+	 * 
+	 * @param url The full url
+	 * @param contentType Content type of the body
+	 * @param body The request body
+	 * @param connectTimeout Connect timeout in milliseconds, 0 for none
+	 * @param readTimeout Read timeout in milliseconds, 0 for none
+	 * @param handler Receives the response
+	 */
+	public void post(String url, String contentType, byte[] body, int connectTimeout, int readTimeout, OmniataHttpResponseHandler handler);
+}
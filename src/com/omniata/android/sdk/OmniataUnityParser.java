@@ -0,0 +1,208 @@
+package com.omniata.android.sdk;
+
+import java.nio.charset.Charset;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Parses the events passed from Unity. Parameters are sent as URL encoded key=value lines:
+ *
+ * <pre>
+ * level=3
+ * name=Dark%20Forest
+ * </pre>
+ *
+ * A batch holds several events separated by empty lines, the first line of an event is
+ * its URL encoded type:
+ *
+ * <pre>
+ * om_level_start
+ * level=3
+ *
+ * om_level_end
+ * level=3
+ * score=1200
+ * </pre>
+ *
+ * The parser works on indexes of the input without regular expressions, splitting or
+ * intermediate strings, and decodes only the parts containing escapes.
+ */
+/* package */ class OmniataUnityParser {
+	private static final String  TAG  = "OmniataUnityParser";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* package */ interface Handler {
+		/**
+		 * Decides on the type of an event whether its parameters are parsed, so that
+		 * dropped events cost no parsing
+		 * @return false to skip the event
+		 */
+		boolean accept(String eventType);
+
+		/**
+		 * Receives a parsed event of a batch accepted by {@link #accept(String)}
+		 * @return true if the event was tracked
+		 */
+		boolean onEvent(String eventType, JSONObject parameters);
+	}
+
+	private OmniataUnityParser() {
+	}
+
+	/**
+	 * Parses a batch of events and passes them to the handler in order
+	 *
+	 * @param batch
+	 * @param handler
+	 * @return The number of events the handler tracked
+	 */
+	/* package */ static int parseBatch(String batch, Handler handler) {
+		if (batch == null) {
+			return 0;
+		}
+
+		int tracked = 0;
+		int length = batch.length();
+		int pos = 0;
+		while (pos < length) {
+			// Skip the empty lines separating events
+			if (batch.charAt(pos) == '\n') {
+				pos++;
+				continue;
+			}
+
+			int typeEnd = indexOf(batch, '\n', pos, length);
+			int end = batch.indexOf("\n\n", typeEnd);
+			if (end < 0) {
+				end = length;
+			}
+
+			String eventType = decode(batch, pos, typeEnd);
+			if (handler.accept(eventType)
+					&& handler.onEvent(eventType, parseParameters(batch, typeEnd + 1, end))) {
+				tracked++;
+			}
+			pos = end;
+		}
+		return tracked;
+	}
+
+	/**
+	 * Parses the parameters of an event
+	 *
+	 * @param para key=value lines, may be null
+	 * @return The parameters, empty if there are none
+	 */
+	/* package */ static JSONObject parseParameters(String para) {
+		return para == null ? new JSONObject() : parseParameters(para, 0, para.length());
+	}
+
+	private static JSONObject parseParameters(String s, int start, int end) {
+		JSONObject parameters = new JSONObject();
+
+		int pos = start;
+		while (pos < end) {
+			int lineEnd = indexOf(s, '\n', pos, end);
+			int eq = indexOf(s, '=', pos, lineEnd);
+			if (eq < lineEnd) {
+				try {
+					parameters.put(decode(s, pos, eq), decode(s, eq + 1, lineEnd));
+				} catch (JSONException e) {
+					OmniataLog.e(TAG, e.toString());
+				}
+			} else if (lineEnd > pos) {
+				OmniataLog.w(TAG, "Skipping parameter without value: {}", s.substring(pos, lineEnd));
+			}
+			pos = lineEnd + 1;
+		}
+		return parameters;
+	}
+
+	/**
+	 * Decodes a URL encoded part of the string, '+' is a space and %XX an UTF-8 byte.
+	 * Malformed escapes are kept as they are.
+	 */
+	/* package */ static String decode(String s, int start, int end) {
+		int i = start;
+		while (i < end) {
+			char c = s.charAt(i);
+			if (c == '%' || c == '+') {
+				break;
+			}
+			i++;
+		}
+		if (i == end) {
+			// Nothing to decode
+			return s.substring(start, end);
+		}
+
+		// A char takes at most three bytes in UTF-8 and escapes only shorten the input
+		byte[] bytes = new byte[(end - start) * 3];
+		int n = 0;
+		for (i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == '+') {
+				bytes[n++] = ' ';
+			} else if (c == '%' && hex(s, i + 1, end) >= 0 && hex(s, i + 2, end) >= 0) {
+				bytes[n++] = (byte)((hex(s, i + 1, end) << 4) | hex(s, i + 2, end));
+				i += 2;
+			} else if (c < 0x80) {
+				bytes[n++] = (byte)c;
+			} else {
+				// Unescaped non-ASCII, encode it back to UTF-8
+				int codePoint = Character.codePointAt(s, i);
+				if (Character.isSupplementaryCodePoint(codePoint)) {
+					i++;
+				}
+				n = putUTF8(bytes, n, codePoint);
+			}
+		}
+		return new String(bytes, 0, n, UTF8);
+	}
+
+	private static int putUTF8(byte[] bytes, int n, int codePoint) {
+		if (codePoint < 0x800) {
+			bytes[n++] = (byte)(0xc0 | (codePoint >> 6));
+		} else if (codePoint < 0x10000) {
+			bytes[n++] = (byte)(0xe0 | (codePoint >> 12));
+			bytes[n++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+		} else {
+			bytes[n++] = (byte)(0xf0 | (codePoint >> 18));
+			bytes[n++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+			bytes[n++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+		}
+		bytes[n++] = (byte)(0x80 | (codePoint & 0x3f));
+		return n;
+	}
+
+	/**
+	 * @return The value of the hex digit at i, -1 if there is none
+	 */
+	private static int hex(String s, int i, int end) {
+		if (i >= end) {
+			return -1;
+		}
+		char c = s.charAt(i);
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The index of c between start and end, end if not found
+	 */
+	private static int indexOf(String s, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == c) {
+				return i;
+			}
+		}
+		return end;
+	}
+}
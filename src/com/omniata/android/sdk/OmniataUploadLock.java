@@ -0,0 +1,81 @@
+package com.omniata.android.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import android.content.Context;
+
+/**
+ * Exclusive file lock electing the process that uploads events when several processes
+ * of the app use the SDK. All processes append to the same database, only the lock
+ * holder sends and removes events.
+ *
+ * Within the process the lock belongs to the thread that last acquired it. A worker thread
+ * started while the previous one is still finishing takes the lock over, and the previous
+ * thread's release() then leaves it held.
+ */
+/* package */ class OmniataUploadLock {
+	private static final String TAG 	  = "OmniataUploadLock";
+	private static final String LOCK_FILE = "omniata.lock";
+	
+	private final Context 	context;
+	private RandomAccessFile file;
+	private FileLock 		lock;
+	private Thread 			owner;
+	
+	public OmniataUploadLock(Context context) {
+		this.context = context;
+	}
+	
+	/**
+	 * @return true if this process holds the lock, acquiring it if it's free. The calling
+	 * thread becomes its owner.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (lock != null && lock.isValid()) {
+			owner = Thread.currentThread();
+			return true;
+		}
+		try {
+			if (file == null) {
+				file = new RandomAccessFile(new File(context.getFilesDir(), LOCK_FILE), "rw");
+			}
+			lock = file.getChannel().tryLock();
+		} catch (IOException e) {
+			OmniataLog.e(TAG, e.toString());
+			lock = null;
+		} catch (OverlappingFileLockException e) {
+			// Held by this process already
+			OmniataLog.e(TAG, e.toString());
+			lock = null;
+		}
+		owner = lock != null ? Thread.currentThread() : null;
+		return lock != null;
+	}
+	
+	/**
+	 * Releases the lock so that another process can take over uploading. Does nothing
+	 * unless called by the owner.
+	 */
+	public synchronized void release() {
+		if (owner != Thread.currentThread()) {
+			return;
+		}
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+			if (file != null) {
+				file.close();
+			}
+		} catch (IOException e) {
+			OmniataLog.e(TAG, e.toString());
+		}
+		lock  = null;
+		file  = null;
+		owner = null;
+	}
+}
@@ -1,11 +1,11 @@
 package com.omniata.android.sdk;
 
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -21,6 +21,9 @@ import android.net.NetworkInfo;
 	static String EVENT_API        = "";
 	static String CHANNEL_API 	   = "";
 	
+	private static volatile OmniataTransport transport = new OmniataHttpTransport();
+	private static volatile EventURLs 		 eventURLs;
+	
 	
 	/**
 	 * Set TEST_API by using the org defined by the customer.
@@ -33,18 +36,71 @@ import android.net.NetworkInfo;
 		
 	}
 	
+	/* package */ static OmniataTransport getTransport() {
+		return transport;
+	}
+	
+	/* package */ static void setTransport(OmniataTransport transport) {
+		OmniataUtils.transport = transport != null ? transport : new OmniataHttpTransport();
+	}
+	
 	/* package */ static String getProtocol(boolean useSSL) {
 		return useSSL ? "https://" : "http://";
 	}
 	
 	/* package */ static String getEventAPI(boolean useSSL, boolean debug) {
-		if (debug) {
-			return getProtocol(false) + TEST_EVENT_API + "/event";  // Test API is http only
-		} else {
-			return getProtocol(useSSL) + EVENT_API + "/event";
+		EventURLs urls = getEventURLs();
+		return debug ? urls.test : useSSL ? urls.https : urls.http;
+	}
+	
+	/* package */ static String getEventBatchAPI(boolean useSSL, boolean debug) {
+		EventURLs urls = getEventURLs();
+		return debug ? urls.testBatch : useSSL ? urls.httpsBatch : urls.httpBatch;
+	}
+	
+	/**
+	 * Returns the event URLs, building them again only when the hosts have changed
+	 */
+	private static EventURLs getEventURLs() {
+		EventURLs urls = eventURLs;
+		// The hosts are replaced, never modified, so comparing references is enough
+		if (urls == null || urls.host != EVENT_API || urls.testHost != TEST_EVENT_API) {
+			urls = new EventURLs(EVENT_API, TEST_EVENT_API);
+			eventURLs = urls;
+		}
+		return urls;
+	}
+	
+	private static class EventURLs {
+		final String host;
+		final String testHost;
+		final String http;
+		final String https;
+		final String test;
+		final String httpBatch;
+		final String httpsBatch;
+		final String testBatch;
+		
+		EventURLs(String host, String testHost) {
+			this.host 		= host;
+			this.testHost 	= testHost;
+			this.http 		= getProtocol(false) + host + "/event";
+			this.https 		= getProtocol(true) + host + "/event";
+			this.test 		= getProtocol(false) + testHost + "/event";  // Test API is http only
+			this.httpBatch 	= http + "/batch";
+			this.httpsBatch = https + "/batch";
+			this.testBatch 	= test + "/batch";
 		}
 	}
 	
+	/**
+	 * @return true if the response code tells that the server doesn't have the endpoint or
+	 * doesn't support the method, i.e. 404, 405 or 501
+	 */
+	/* package */ static boolean isUnsupportedEndpoint(int httpResponseCode) {
+		return httpResponseCode == 404 || httpResponseCode == 405 || httpResponseCode == 501;
+	}
+	
 	/* package */ static void assertApiKeyValid(String apiKey) throws IllegalArgumentException{
 		if(apiKey == null || apiKey == "") {
 			throw new IllegalArgumentException("API key is invalid");
@@ -75,7 +131,28 @@ import android.net.NetworkInfo;
 	    s.close();
 	    return result;
 	}
-	
+
+	/**
+	 * Returns the length of the string encoded as UTF-8 without encoding it
+	 */
+	/* package */ static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
 	/* package */ static boolean isConnected(Context context) {
 		ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
 		NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
@@ -83,30 +160,60 @@ import android.net.NetworkInfo;
 		return activeNetwork != null && activeNetwork.isConnected();
 	}
 	
-	/* package */ static String jsonToQueryString(JSONObject jsonObj) {
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Builds the upload envelope of a batch of events. Fields having the same value in
+	 * every event (api_key, uid, the automatic parameters etc.) are sent once in "common",
+	 * the events in "events" only carry the rest of their fields.
+	 * 
+	 * @param events
+	 * @return {"common": {...}, "events": [{...}, ...]}
+	 */
+	/* package */ static JSONObject batchEnvelope(List<JSONObject> events) {
+		JSONObject common = new JSONObject();
+		JSONObject first = events.get(0);
 		
-		try {
-			
-			Iterator<String> i = (Iterator<String>)jsonObj.keys();
-			while (i.hasNext()) {
-				String key = (String)i.next();
-				Object value;
+		@SuppressWarnings("unchecked")
+		Iterator<String> keys = (Iterator<String>)first.keys();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			Object value = first.opt(key);
+			boolean shared = true;
+			for (int i = 1; i < events.size() && shared; i++) {
+				Object other = events.get(i).opt(key);
+				shared = other != null && other.getClass() == value.getClass() && other.toString().equals(value.toString());
+			}
+			if (shared) {
 				try {
-					value = jsonObj.get(key);
+					common.put(key, value);
 				} catch (JSONException e) {
-					value = "";
-				}				
-				sb.append(URLEncoder.encode(key, "UTF-8"));
-				sb.append("=");
-				sb.append(URLEncoder.encode(value.toString(), "UTF-8"));
-				sb.append("&");
+				}
+			}
+		}
+		
+		JSONArray deltas = new JSONArray();
+		for (JSONObject event : events) {
+			JSONObject delta = new JSONObject();
+			@SuppressWarnings("unchecked")
+			Iterator<String> i = (Iterator<String>)event.keys();
+			while (i.hasNext()) {
+				String key = i.next();
+				if (!common.has(key)) {
+					try {
+						delta.put(key, event.opt(key));
+					} catch (JSONException e) {
+					}
+				}
 			}
-		} catch (UnsupportedEncodingException e) {
-			System.out.println(e);
+			deltas.put(delta);
 		}
 		
-		return sb.substring(0, sb.length() - 1);
+		JSONObject envelope = new JSONObject();
+		try {
+			envelope.put("common", common);
+			envelope.put("events", deltas);
+		} catch (JSONException e) {
+		}
+		return envelope;
 	}
 	
 	/* package */ static JSONObject mergeJSON(JSONObject obj1, JSONObject obj2) {
@@ -0,0 +1,96 @@
+package com.omniata.android.sdk;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves the API hosts and opens connections to them ahead of the first requests, so
+ * the first event and channel requests don't pay for DNS, TCP and TLS one after another.
+ */
+/* package */ class OmniataWarmup {
+	private static final String TAG 			= "OmniataWarmup";
+	private static final int 	SECONDS 		= 1000;
+	// Idle keep-alive connections are closed after a few minutes, resolving again
+	// within the same time wouldn't save anything
+	private static final long 	DNS_TTL 		= 5 * 60 * SECONDS;
+	private static final int 	CONNECT_TIMEOUT = 10 * SECONDS;
+
+	private static final Map<String, Resolved> cache = new HashMap<String, Resolved>();
+
+	private static class Resolved {
+		final InetAddress[] addresses;
+		final long 			expires;
+
+		Resolved(InetAddress[] addresses, long expires) {
+			this.addresses = addresses;
+			this.expires   = expires;
+		}
+	}
+
+	private OmniataWarmup() {
+	}
+
+	/**
+	 * Warms up the connections to the hosts in the background
+	 * @param hosts
+	 */
+	public static void warmUp(final String... hosts) {
+		OmniataScheduler.io().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				for (String host : hosts) {
+					if (host == null || host.length() == 0) {
+						continue;
+					}
+					if (resolve(host) == null) {
+						// Offline or unknown host, connecting would fail as well
+						continue;
+					}
+					preconnect(host);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the addresses of the host, resolving it if not cached or the cached
+	 * addresses have expired
+	 * @param host
+	 * @return The addresses, null if resolving failed
+	 */
+	/* package */ static InetAddress[] resolve(String host) {
+		long now = System.currentTimeMillis();
+		synchronized(cache) {
+			Resolved resolved = cache.get(host);
+			if (resolved != null && resolved.expires > now) {
+				return resolved.addresses;
+			}
+		}
+
+		try {
+			InetAddress[] addresses = InetAddress.getAllByName(host);
+			OmniataLog.d(TAG, "Resolved {}", host);
+			synchronized(cache) {
+				cache.put(host, new Resolved(addresses, now + DNS_TTL));
+			}
+			return addresses;
+		} catch (UnknownHostException e) {
+			OmniataLog.d(TAG, e.toString());
+			return null;
+		}
+	}
+
+	private static void preconnect(String host) {
+		OmniataTransport transport = OmniataUtils.getTransport();
+		// A custom transport has its own connections, if any
+		if (transport instanceof OmniataHttpTransport) {
+			long start = System.currentTimeMillis();
+			if (((OmniataHttpTransport)transport).preconnect(OmniataUtils.getProtocol(true) + host + "/", CONNECT_TIMEOUT)) {
+				OmniataLog.d(TAG, "Connected to {} in {}ms", host, System.currentTimeMillis() - start);
+			}
+		}
+	}
+}
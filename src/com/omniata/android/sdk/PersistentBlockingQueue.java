@@ -1,84 +1,172 @@
 package com.omniata.android.sdk;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.util.AbstractQueue;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
-import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
-import android.database.sqlite.SQLiteOpenHelper;
-
 /* package */ class PersistentBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
-	//private SQLiteDatabase db;
 	private static final String TAG = "PersistentBlockingQueue";
-	private SQLiteOpenHelper helper;
-	private String name;
+	private static final int PAGE_SIZE 			 = 100;
+	private static final int RECLAIM_DELAY 		 = 60 * 1000;
+	private final OmniataQueueStorage storage;
 	private Class<E> type;
 	private int size;
+	private long lastId;
+	private Future<?> reclaim;
 	
-	private Context context;
-	
-	public PersistentBlockingQueue(Context context, String name, Class<E> type) {
+	/**
+	 * @param storage Backend storing the elements, opened lazily so the constructor does no disk I/O
+	 * @param type Class of the elements, must have a constructor taking the string form of an element
+	 */
+	public PersistentBlockingQueue(OmniataQueueStorage storage, Class<E> type) {
 		super();
 		
-		this.name    = name;
+		this.storage = storage;
 		this.type    = type;
-		this.context = context;
 		this.size    = -1;
-		
-		this.helper = new OmniataDBHelper(this.context, name);
-		this.size = OmniataDBHelper.size(getDB(), name);
 	}
 	
 	/**
-	 * Helper method that returns the database bound to this persistent queue
-	 * @return The SQLiteDatabase that holds this queue
+	 * @return The backend storing the elements
 	 */
+	public OmniataQueueStorage getStorage() {
+		return storage;
+	}
 	
-	protected SQLiteDatabase getDB() {
-		try {
-			return helper.getWritableDatabase();
-		} catch (SQLiteException e) {
-			return null;
+	/**
+	 * Opens or creates the storage and reads the size of the queue. Should be called
+	 * from a background thread, otherwise the first operation on the queue opens it.
+	 */
+	public void open() {
+		synchronized(this) {
+			if (size == -1) {
+				size   = storage.size();
+				lastId = storage.lastId();
+				if (size == 0) {
+					scheduleReclaim();
+				}
+			}
 		}
 	}
-
+	
 	/**
-	 * Returns the head element of this queue without removing
+	 * Re-reads the size of the queue from the storage. Other processes of the app may
+	 * add and remove elements without this process noticing.
+	 */
+	public void refresh() {
+		synchronized(this) {
+			if (size != -1) {
+				size   = storage.size();
+				lastId = Math.max(lastId, storage.lastId());
+				if (size > 0) {
+					notifyAll();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Closes the storage, the next operation on the queue reopens it
+	 */
+	public void close() {
+		synchronized(this) {
+			if (size != -1) {
+				storage.close();
+				size = -1;
+			}
+		}
+	}
+	
+	/**
+	 * @return The total size of the elements in bytes
+	 */
+	public long bytes() {
+		synchronized(this) {
+			open();
+			return storage.bytes();
+		}
+	}
+	
+	/**
+	 * Returns the value of an integer valued pragma of the database, e.g. freelist_count
 	 * 
+	 * @param pragma
+	 * @return The value, 0 if the elements aren't stored in SQLite
+	 */
+	public long pragma(String pragma) {
+		synchronized(this) {
+			open();
+			return storage instanceof OmniataSQLiteStorage ? ((OmniataSQLiteStorage)storage).pragma(pragma) : 0;
+		}
+	}
+	
+	/**
+	 * Reclaims the free space of the storage once the queue has stayed empty for a while,
+	 * so the files don't stay at the size of the largest backlog
+	 */
+	private void scheduleReclaim() {
+		if (reclaim == null || reclaim.isDone()) {
+			reclaim = OmniataScheduler.get().schedule(new Runnable() {
+				
+				@Override
+				public void run() {
+					// Compacting is disk I/O, keep it off the scheduler thread
+					OmniataScheduler.io().execute(new Runnable() {
+						
+						@Override
+						public void run() {
+							reclaim();
+						}
+					});
+				}
+			}, RECLAIM_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void reclaim() {
+		synchronized(this) {
+			// Skip if the queue has been closed or has elements again
+			if (size != 0) {
+				return;
+			}
+			storage.compact();
+		}
+	}
+	
+	/**
+	 * @return true if the storage has been opened
+	 */
+	public boolean isOpen() {
+		synchronized(this) {
+			return size != -1;
+		}
+	}
+	
+	/**
+	 * Returns the head element of this queue without removing
+	 *
 	 * @return The head of the queue or null if empty
 	 */
 	@Override
 	public E peek() {
-		E e = null;
-		
 		synchronized(this) {
-			Cursor c = OmniataDBHelper.first(getDB(), name);
-			
-			if (c != null) {
-				try {
-					if (c.moveToFirst()) {
-						e = instantiateE(c);
-					}
-					c.close();
-				} catch (Exception ee) {
-					c.close();
-					return null;
-				}
-			}
+			List<OmniataQueueStorage.Record> records = read(0, 1);
+			return records.isEmpty() ? null : instantiateE(records.get(0).data);
 		}
-		
-		return e;
 	}
 	
 	/**
 	 * Returns the head element of this queue without removing
-	 * 
+	 *
 	 * @return The head of the queue or null if empty
 	 */
 	public E blockingPeek() throws InterruptedException{
@@ -96,9 +184,131 @@ import android.database.sqlite.SQLiteOpenHelper;
 		return e;
 	}
 	
-	private E instantiateE(Cursor c) {
-		String data = c.getString(1);
-		return instantiateE(data);
+	/**
+	 * Adds up to max elements from the head of this queue to the list without removing.
+	 * Stored elements that can't be instantiated are skipped but counted, so passing the
+	 * returned count to removeFirst() removes exactly the elements read.
+	 *
+	 * @param max
+	 * @param elements
+	 * @return The number of stored elements read, 0 if the queue is empty
+	 */
+	public int peek(int max, List<? super E> elements) {
+		synchronized(this) {
+			List<OmniataQueueStorage.Record> records = read(0, max);
+			for (OmniataQueueStorage.Record record : records) {
+				E e = instantiateE(record.data);
+				if (e != null) {
+					elements.add(e);
+				}
+			}
+			return records.size();
+		}
+	}
+	
+	/**
+	 * Reads up to max elements following the given id, in id order
+	 */
+	private List<OmniataQueueStorage.Record> read(long afterId, int max) {
+		synchronized(this) {
+			open();
+			if (size == 0) {
+				return Collections.emptyList();
+			}
+			return storage.read(afterId, max);
+		}
+	}
+	
+	/**
+	 * Removes up to n elements from the head of this queue
+	 *
+	 * @param n
+	 * @return The number of elements removed
+	 */
+	public int removeFirst(int n) {
+		int removed;
+		
+		synchronized(this) {
+			open();
+			removed = storage.removeFirst(n);
+			onRemoved(removed);
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Removes the elements added before the given time
+	 *
+	 * @param time Milliseconds since the epoch
+	 * @return The number of elements removed
+	 */
+	public int removeOlderThan(long time) {
+		int removed;
+		
+		synchronized(this) {
+			open();
+			removed = storage.removeOlderThan(time);
+			onRemoved(removed);
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Removes the element with the given id
+	 *
+	 * @param id
+	 * @return true if the element was in the queue
+	 */
+	private boolean removeId(long id) {
+		synchronized(this) {
+			open();
+			boolean removed = storage.remove(id);
+			onRemoved(removed ? 1 : 0);
+			return removed;
+		}
+	}
+	
+	private void onRemoved(int removed) {
+		size = Math.max(0, size - removed);
+		if (size == 0) {
+			// The storage may start the ids over once empty
+			lastId = storage.lastId();
+			scheduleReclaim();
+		}
+	}
+	
+	/**
+	 * Counts a failed send attempt for up to n elements at the head of this queue
+	 *
+	 * @param n
+	 */
+	public void incrementAttempts(int n) {
+		synchronized(this) {
+			open();
+			storage.incrementAttempts(n);
+		}
+	}
+	
+	/**
+	 * @return The id of the head element or -1 if the queue is empty
+	 */
+	public long headId() {
+		synchronized(this) {
+			open();
+			return size == 0 ? -1 : storage.firstId();
+		}
+	}
+	
+	/**
+	 * @return The id of the latest element added, ids grow until the queue becomes empty
+	 */
+	public long lastId() {
+		synchronized(this) {
+			open();
+			return lastId;
+		}
 	}
 	
 	private E instantiateE(String data) {
@@ -112,41 +322,23 @@ import android.database.sqlite.SQLiteOpenHelper;
 		
 		return element;
 	}
-
-
+	
+	
 	/**
 	 * Removes and returns the head of the queue
-	 * 
+	 *
 	 * @return The head of the queue
 	 */
 	@Override
 	public E poll() {
-		E e = null;
-
-		// TODO: Determine if this is faster wrapped in a transaction
 		synchronized (this) {
-			Cursor c = OmniataDBHelper.first(getDB(), name);
-			
-			if (c != null) {
-				if (c.moveToFirst() /*&& c.getCount() > 0 */) {
-					int id = c.getInt(0);
-					String data   = c.getString(1);
-					c.close();
-				
-					OmniataDBHelper.delete(getDB(), name, id);
-				
-					if (--size == 0) {
-						OmniataDBHelper.resetAutoIncrement(getDB(), name);
-					}
-				
-					e = instantiateE(data);
-				} else {
-					c.close();
-				}
+			List<OmniataQueueStorage.Record> records = read(0, 1);
+			if (records.isEmpty()) {
+				return null;
 			}
+			removeFirst(1);
+			return instantiateE(records.get(0).data);
 		}
-		
-		return e;
 	}
 	
 	/**
@@ -155,73 +347,129 @@ import android.database.sqlite.SQLiteOpenHelper;
 	@Override
 	public void clear() {
 		synchronized(this) {
-			OmniataDBHelper.deleteAll(getDB(), name);
+			open();
+			storage.clear();
+			size = 0;
+			scheduleReclaim();
 		}
 	}
-
+	
 	/**
 	 * Removes and adds all elements from this queue into a collection
-	 * 
-	 * @param
+	 *
+	 * @param collection
+	 * @return The number of elements removed
+	 */
+	@Override
+	public int drainTo(Collection<? super E> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Removes and adds up to n elements from the head of this queue into a collection.
+	 * The elements are read a page at a time. Elements that can't be instantiated are
+	 * removed but not added.
+	 *
+	 * @param collection
+	 * @param n
+	 * @return The number of elements removed
 	 */
 	@Override
-	public int drainTo(Collection<? super E> collection) {		
+	public int drainTo(Collection<? super E> collection, int n) {
+		if (collection == this) {
+			throw new IllegalArgumentException("Can't drain a queue to itself");
+		}
+		
+		int drained = 0;
+		
 		synchronized(this) {
-			Cursor c = OmniataDBHelper.all(getDB(), name);
-			c.moveToFirst();
-			for(int i = 0; i < c.getCount(); i++, c.moveToNext()) {
-				E e = instantiateE(c);
-				collection.add(e);
+			while (drained < n) {
+				List<OmniataQueueStorage.Record> page = read(0, Math.min(n - drained, PAGE_SIZE));
+				if (page.isEmpty()) {
+					break;
+				}
+				
+				for (OmniataQueueStorage.Record record : page) {
+					E e = instantiateE(record.data);
+					if (e != null) {
+						collection.add(e);
+					}
+				}
+				drained += removeFirst(page.size());
 			}
-			c.close();
 		}
 		
-		return 0;
+		return drained;
 	}
-
-	@Override
-	public int drainTo(Collection<? super E> collection, int n) {
-		// TODO: Implement
-		return 0;
+	
+	/**
+	 * Writes the elements of this queue to the writer, one per line in id order, without
+	 * removing them. The queue is read a page at a time and isn't locked between pages.
+	 *
+	 * @param writer
+	 * @return The number of elements written
+	 * @throws IOException
+	 */
+	public int exportTo(Writer writer) throws IOException {
+		int count = 0;
+		PagedIterator i = new PagedIterator();
+		while (i.hasNext()) {
+			writer.write(i.nextData());
+			writer.write('\n');
+			count++;
+		}
+		return count;
 	}
-
+	
 	@Override
 	public boolean offer(E e) {
-		long rowID;
+		return offer(e, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Inserts the element with the given creation time
+	 *
+	 * @param e
+	 * @param createdAt Creation time of the element in milliseconds since the epoch
+	 * @return true if the element was stored
+	 */
+	public boolean offer(E e, long createdAt) {
+		long id;
 		
 		synchronized(this) {
-			String data = e.toString();
-			rowID = OmniataDBHelper.insert(getDB(), name, data);
+			open();
+			id = storage.insert(e.toString(), createdAt);
 			
-			if (rowID != -1) {
+			if (id != -1) {
+				lastId = id;
 				size++;
 				notifyAll();
 			}
 		}
 		
-		return rowID != -1;
+		return id != -1;
 	}
-
+	
 	@Override
 	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
 		return offer(e);
 	}
-
+	
 	@Override
 	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
 		return poll();
 	}
-
+	
 	@Override
 	public void put(E e) throws InterruptedException {
 		offer(e);
 	}
-
+	
 	@Override
 	public int remainingCapacity() {
 		return Integer.MAX_VALUE;
 	}
-
+	
 	@Override
 	public E take() throws InterruptedException {
 		E e;
@@ -237,17 +485,75 @@ import android.database.sqlite.SQLiteOpenHelper;
 		
 		return e;
 	}
-
+	
+	/**
+	 * Returns a weakly consistent iterator over the elements in id order. The storage is read
+	 * a page at a time so memory use doesn't depend on the size of the queue. Elements added
+	 * or removed after the iterator was created may or may not be seen. Elements that can't
+	 * be instantiated are returned as null. A storage that only removes from the head
+	 * supports remove() for the head element only.
+	 */
 	@Override
 	public Iterator<E> iterator() {
-		// TODO: Implement this
-		return null;
+		return new PagedIterator();
 	}
-
+	
+	/**
+	 * Returns the number of elements in the queue, 0 until the queue has been opened
+	 */
 	@Override
 	public int size() {
 		synchronized(this) {
-			return size;
+			return size == -1 ? 0 : size;
+		}
+	}
+	
+	private class PagedIterator implements Iterator<E> {
+		private List<OmniataQueueStorage.Record> page = Collections.emptyList();
+		private int 							 next;
+		private long 							 lastReadId;
+		private long 							 lastReturnedId = -1;
+		private boolean 						 lastPage;
+		
+		@Override
+		public boolean hasNext() {
+			if (next == page.size() && !lastPage) {
+				readPage();
+			}
+			return next < page.size();
+		}
+		
+		@Override
+		public E next() {
+			return instantiateE(nextData());
+		}
+		
+		String nextData() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			OmniataQueueStorage.Record record = page.get(next++);
+			lastReturnedId = record.id;
+			return record.data;
+		}
+		
+		@Override
+		public void remove() {
+			if (lastReturnedId == -1) {
+				throw new IllegalStateException();
+			}
+			removeId(lastReturnedId);
+			lastReturnedId = -1;
+		}
+		
+		private void readPage() {
+			// Continue after the last element of the previous page, elements are never reordered
+			page = read(lastReadId, PAGE_SIZE);
+			next = 0;
+			if (!page.isEmpty()) {
+				lastReadId = page.get(page.size() - 1).id;
+			}
+			lastPage = page.size() < PAGE_SIZE;
 		}
 	}
 }